@@ -20,120 +20,373 @@ import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.util.CheckClassAdapter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
-import java.util.HashMap;
+import java.net.URL;
+import java.net.URLDecoder;
+
+import java.security.CodeSource;
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
+/* Builds jt-bootlib.jar, containing the instrumented JDK classes and the
+ * JavaTaint runtime jar. Each JDK class (and any analysis it needs) is
+ * instrumented on its own thread, and the entries of the runtime jar are
+ * copied without being recompressed (see JarWriter).
+ *
+ * The manifest of the bootlib records the hashes of the JDK classes, of
+ * the bootstrap code and of the runtime jar, and the installation path. If
+ * the output jar already records the same values, it is left as it is.
+ */
 
 public class Bootstrap 
 {
-    private static Map classMap = new HashMap();
+    private static final String CLASSES_ATTR  = "JavaTaint-JDK-Classes";
+    private static final String ADAPTERS_ATTR = "JavaTaint-Adapters";
+    private static final String RUNTIME_ATTR  = "JavaTaint-Runtime";
+    private static final String INSTALL_ATTR  = "JavaTaint-Install-Path";
+    private static final String AGENT_ATTR    = "JavaTaint-Agent";
+
+    private static final String[] fingerprintAttrs = {
+        CLASSES_ATTR, ADAPTERS_ATTR, RUNTIME_ATTR, INSTALL_ATTR, AGENT_ATTR
+    };
+
+    private static final Map classMap = new TreeMap();
+    private static final List jobs = new ArrayList();
     private static boolean debug;
+    private static boolean agent;
+
+    /* A JDK class to instrument, after running an optional analysis */
+    private static final class Job
+    {
+        final String className;
+        final byte[] b;
+        final AnalysisBuilder analysis;
+        final InstrumentationBuilder builder;
+
+        Job(String className, byte[] b, AnalysisBuilder analysis, 
+            InstrumentationBuilder builder) 
+        {
+            this.className = className;
+            this.b = b;
+            this.analysis = analysis;
+            this.builder = builder;
+        }
 
-    private static void addInstrumentation(String className, 
-                                           InstrumentationBuilder b)
+        void run() throws IOException {
+            if (analysis != null)
+                addAnalysis(b, analysis);
+            addInstrumentation(className, b, builder);
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            for (int n; (n = is.read(buf)) > 0; )
+                bos.write(buf, 0, n);
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void addJob(String className, AnalysisBuilder analysis,
+                               InstrumentationBuilder builder)
         throws IOException
     {
-        ClassReader cr = new ClassReader(className);
+        InputStream is = ClassLoader.getSystemResourceAsStream(
+                             className.replace('.', '/') + ".class");
+        if (is == null)
+            throw new IOException("Class not found: " + className);
+
+        jobs.add(new Job(className, readFully(is), analysis, builder));
+    }
+
+    private static void addJob(String className, 
+                               InstrumentationBuilder builder)
+        throws IOException
+    {
+        addJob(className, null, builder);
+    }
+
+    private static void addInstrumentation(String className, byte[] b,
+                                           InstrumentationBuilder ib)
+        throws IOException
+    {
+        ClassReader cr = new ClassReader(b);
         ClassWriter cw = new ClassWriter(cr, 0);
         ClassVisitor cv;
 
         if (debug) 
-            cv = b.build(new CheckClassAdapter(cw));
+            cv = ib.build(new CheckClassAdapter(cw));
         else
-            cv = b.build(cw);
+            cv = ib.build(cw);
 
         cr.accept(cv, ClassReader.EXPAND_FRAMES);
 
-        classMap.put(className.replace('.','/') + ".class", cw.toByteArray());
+        byte[] instb = cw.toByteArray();
+        synchronized(classMap) {
+            classMap.put(className.replace('.','/') + ".class", instb);
+        }
 
         if (debug) {
             StringWriter sw = new StringWriter();
             PrintWriter pw = new PrintWriter(sw);
-            CheckClassAdapter.verify(new ClassReader(cw.toByteArray()), false,
-                                     pw);
+            CheckClassAdapter.verify(new ClassReader(instb), false, pw);
             pw.flush();
             if (sw.toString().length() > 0)
                 throw new IllegalArgumentException(sw.toString());
         }
     }
 
-    private static void addAnalysis(String className, AnalysisBuilder b)
-        throws IOException
-    {
-        ClassReader cr = new ClassReader(className);
-        ClassVisitor cv = b.build();
+    private static void addAnalysis(byte[] b, AnalysisBuilder ab) {
+        ClassReader cr = new ClassReader(b);
+        ClassVisitor cv = ab.build();
         cr.accept(cv, ClassReader.EXPAND_FRAMES + ClassReader.SKIP_DEBUG 
                       + ClassReader.SKIP_FRAMES);
     }
 
-    private static void writeJarFile(String rtJar, String outputJar,
-                                     String installPath) 
-        throws IOException, FileNotFoundException
+    /* Run all jobs on a thread per processor, and rethrow the first error */
+    private static void runJobs() throws Exception {
+        final LinkedList queue = new LinkedList(jobs);
+        final List errors = new ArrayList();
+        int n = Math.min(Runtime.getRuntime().availableProcessors(), 
+                         jobs.size());
+        Thread[] t = new Thread[n];
+
+        for (int i = 0; i < n; i++) {
+            t[i] = new Thread("jt-bootstrap " + i) {
+                public void run() {
+                    for (;;) {
+                        Job job;
+                        synchronized(queue) {
+                            if (queue.isEmpty() || !errors.isEmpty())
+                                return;
+                            job = (Job) queue.removeFirst();
+                        }
+
+                        try {
+                            job.run();
+                        } catch (Throwable th) {
+                            synchronized(queue) {
+                                errors.add(th);
+                            }
+                        }
+                    }
+                }
+            };
+            t[i].start();
+        }
+
+        for (int i = 0; i < n; i++)
+            t[i].join();
+
+        if (!errors.isEmpty()) {
+            Throwable th = (Throwable) errors.get(0);
+            if (th instanceof Error)
+                throw (Error) th;
+            if (th instanceof Exception)
+                throw (Exception) th;
+            throw new Exception(th.toString(), th);
+        }
+    }
+
+    private static String hex(byte[] b) {
+        StringBuffer sb = new StringBuffer();
+        String digits = "0123456789abcdef";
+
+        for (int i = 0; i < b.length; i++)
+            sb.append(digits.charAt((b[i] >> 4) & 0xf))
+              .append(digits.charAt(b[i] & 0xf));
+        return sb.toString();
+    }
+
+    private static String digest(File f) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        return hex(md.digest(readFully(new FileInputStream(f))));
+    }
+
+    /* Return a hash of the bootstrap code, or null if it is not run from a
+     * jar file, in which case the output jar is never considered up to date.
+     */
+    private static String adaptersDigest() throws Exception {
+        CodeSource cs = Bootstrap.class.getProtectionDomain().getCodeSource();
+        URL url = cs == null ? null : cs.getLocation();
+
+        if (url == null || !"file".equals(url.getProtocol()))
+            return null;
+
+        File f = new File(URLDecoder.decode(url.getPath(), "UTF-8"));
+        if (!f.isFile())
+            return null;
+        return "@version@ " + digest(f);
+    }
+
+    private static Manifest manifest(String rtJar, String installPath) 
+        throws Exception
     {
-        FileOutputStream fos = new FileOutputStream(outputJar);
-        JarOutputStream out = null;
+        Manifest mf = null;
 
         if (rtJar != null) {
-            JarInputStream in = new JarInputStream(new FileInputStream(rtJar));
-            byte[] buf = new byte[4096];
-
-            if (in.getManifest() != null)
-                out = new JarOutputStream(fos, in.getManifest());
-            else
-                out = new JarOutputStream(fos);
-
-            JarEntry entry;
-            while ((entry = in.getNextJarEntry()) != null) {
-                out.putNextEntry(entry);
-
-                int r;
-                while ((r = in.read(buf)) != -1) 
-                    out.write(buf, 0, r);
-                out.closeEntry();
+            JarFile jf = new JarFile(rtJar);
+            try {
+                mf = jf.getManifest();
+            } finally {
+                jf.close();
             }
         }
 
-        if (out == null)
-            out = new JarOutputStream(fos);
+        if (mf == null)
+            mf = new Manifest();
+
+        Attributes a = mf.getMainAttributes();
+        a.putValue("Manifest-Version", "1.0");
 
-        for (Iterator i = classMap.keySet().iterator(); i.hasNext();) {
-            String className = (String) i.next();
-            byte[] b = (byte[]) classMap.get(className);
-            out.putNextEntry(new JarEntry(className));
-            out.write(b);
-            out.closeEntry();
+        /* Agent bootlibs double as the -javaagent jar */
+        if (agent)
+            a.putValue("Premain-Class", "jtaint.Agent");
+
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = (Job) jobs.get(i);
+            md.update(job.className.getBytes("UTF-8"));
+            md.update(job.b);
         }
+        a.putValue(CLASSES_ATTR, hex(md.digest()));
+
+        String adapters = adaptersDigest();
+        if (adapters != null)
+            a.putValue(ADAPTERS_ATTR, adapters);
+        a.putValue(RUNTIME_ATTR, rtJar == null ? "" 
+                                               : digest(new File(rtJar)));
+        a.putValue(INSTALL_ATTR, installPath == null ? "" : installPath);
+        a.putValue(AGENT_ATTR, String.valueOf(agent));
+        return mf;
+    }
+
+    /* Does outputJar record the same fingerprint as manifest mf? */
+    private static boolean isUpToDate(String outputJar, Manifest mf) {
+        Attributes a = mf.getMainAttributes();
+
+        if (a.getValue(ADAPTERS_ATTR) == null || !new File(outputJar).isFile())
+            return false;
 
-        if (installPath != null) {
-            out.putNextEntry(new JarEntry("jtaint/InstallPath"));
-            out.write(installPath.getBytes());
-            out.closeEntry();
+        try {
+            JarFile jf = new JarFile(outputJar);
+            Manifest old;
+
+            try {
+                old = jf.getManifest();
+            } finally {
+                jf.close();
+            }
+
+            if (old == null)
+                return false;
+
+            Attributes oa = old.getMainAttributes();
+            for (int i = 0; i < fingerprintAttrs.length; i++) {
+                String s = a.getValue(fingerprintAttrs[i]);
+                if (!s.equals(oa.getValue(fingerprintAttrs[i])))
+                    return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
         }
+    }
+
+    private static void writeJarFile(String rtJar, String outputJar,
+                                     String installPath, Manifest mf) 
+        throws IOException
+    {
+        File out = new File(outputJar);
+        File tmp = new File(outputJar + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        boolean done = false;
 
-        out.flush();
-        out.close();
+        try {
+            JarWriter jw = new JarWriter(fos);
+            Set skip = new HashSet(classMap.keySet());
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            mf.write(bos);
+            jw.putEntry(JarFile.MANIFEST_NAME, bos.toByteArray());
+
+            skip.add("META-INF/");
+            skip.add(JarFile.MANIFEST_NAME);
+            skip.add("jtaint/InstallPath");
+            if (rtJar != null)
+                jw.copyEntries(rtJar, skip);
+
+            for (Iterator i = classMap.entrySet().iterator(); i.hasNext();) {
+                Map.Entry e = (Map.Entry) i.next();
+                jw.putEntry((String) e.getKey(), (byte[]) e.getValue());
+            }
+
+            if (installPath != null)
+                jw.putEntry("jtaint/InstallPath", installPath.getBytes());
+
+            jw.close();
+            done = true;
+        } finally {
+            if (!done) {
+                fos.close();
+                tmp.delete();
+            }
+        }
+
+        /* Replace the output jar in one step where renameTo can (POSIX). 
+         * Elsewhere, it fails if the output jar exists, and the output jar
+         * is removed first.
+         */
+        if (tmp.renameTo(out))
+            return;
+
+        if (out.exists() && !out.delete()) {
+            tmp.delete();
+            throw new IOException("Could not replace " + out);
+        }
+
+        if (!tmp.renameTo(out))
+            throw new IOException("Could not rename " + tmp + " to " + out
+                                  + ", the new jar is left in " + tmp);
     }
 
     private static void usage() {
         System.err.println("Usage: jt-bootstrap [-i <installation path>] [-d]"
+                + "[-a] [-f] "
                 + "[-r14 <runtime jre 1.4 jar filename>] "
                 + "[-r15 <runtime jre 1.5+ jar filename>] "
                 + "[-j <output jar filename>] ");
         System.err.print("Options:");
         System.err.println("-d\tEnable extra debugging checks");
+        System.err.println("-a\tBuild a bootlib for use as a java agent "
+                           + "(JRE 1.5 or above), run with\n"
+                           + "\t-Xbootclasspath/p:<jar> -javaagent:<jar>");
+        System.err.println("-f\tRebuild the output jar even if it is up "
+                           + "to date");
         System.err.println("-i\tSpecify installation directory pathname");
         System.err.println("-r[14|15]\tSpecify name of runtime jar library to "
                            + "include in the output jar file.\nIf either "
@@ -151,7 +404,8 @@ public class Bootstrap
                rt15Jar     = null,
                installPath = null,
                outputJar   = "jt-bootlib.jar";
-               
+        boolean force = false;
+
         for (int i = 0; i < args.length; i++) {
             if ("-r14".equals(args[i]) && i != args.length - 1)
                     rt14Jar = args[++i];
@@ -163,6 +417,10 @@ public class Bootstrap
                 installPath = args[++i];
             else if ("-d".equals(args[i]))
                debug = true;
+            else if ("-a".equals(args[i]))
+               agent = true;
+            else if ("-f".equals(args[i]))
+               force = true;
             else 
                 usage();
        }
@@ -183,38 +441,51 @@ public class Bootstrap
             System.exit(-1);
         }
 
+        if (agent && VmInfo.version() < VmInfo.VERSION1_5) {
+            System.err.println("Agent mode requires JRE 1.5 or above");
+            System.exit(-1);
+        }
+
         try {
-            addInstrumentation("java.lang.String", StringAdapter.builder());
-            addInstrumentation("java.lang.StringBuffer", 
-                               StringBufferAdapter.builder());
-            addInstrumentation("java.lang.ClassLoader", 
-                               ClassLoaderAdapter.builder());
-            addInstrumentation("java.io.OutputStream", 
-                               XssAdapter.builder("java/io/OutputStream"));
-            addInstrumentation("java.io.PrintWriter", 
-                               XssAdapter.builder("java/io/PrintWriter"));
-            addInstrumentation("java.lang.Runtime", RuntimeAdapter.builder());
-            addInstrumentation("java.lang.Thread", ThreadAdapter.builder());
-
-            addInstrumentation("java.sql.Connection",
-                               ConnectionAdapter.builder());
-            addAnalysis("java.io.File", FileAdapter.CloneOptimizer.builder());
-            addInstrumentation("java.io.File", FileAdapter.builder());
+            addJob("java.lang.String", StringAdapter.builder());
+            addJob("java.lang.StringBuffer", 
+                   StringBufferAdapter.LockOptimizer.builder(),
+                   StringBufferAdapter.builder());
+            addJob("java.lang.ClassLoader", 
+                   ClassLoaderAdapter.builder(!agent));
+            addJob("java.io.OutputStream", 
+                   XssAdapter.builder("java/io/OutputStream"));
+            addJob("java.io.PrintWriter", 
+                   XssAdapter.builder("java/io/PrintWriter"));
+            addJob("java.lang.Runtime", RuntimeAdapter.builder());
+            addJob("java.lang.Thread", ThreadAdapter.builder());
+
+            addJob("java.sql.Connection", ConnectionAdapter.builder());
+            addJob("java.io.File", FileAdapter.CloneOptimizer.builder(),
+                   FileAdapter.builder());
 
             if (VmInfo.vendor() == VmInfo.VENDOR_BEA)
-                addInstrumentation("jrockit.vm.StringMaker",
-                                   StringMakerAdapter.builder());
+                addJob("jrockit.vm.StringMaker", StringMakerAdapter.builder());
 
+            String rtJar = rt14Jar;
             if (VmInfo.version() >= VmInfo.VERSION1_5) {
-                addInstrumentation("java.lang.StringBuilder", 
-                        StringBuilderAdapter.builder());
-                addInstrumentation("java.lang.ProcessBuilder", 
-                        ProcessBuilderAdapter.builder());
-                writeJarFile(rt15Jar, outputJar, installPath);
-            } else {
-                writeJarFile(rt14Jar, outputJar, installPath);
+                addJob("java.lang.StringBuilder", 
+                       StringBuilderAdapter.LockOptimizer.builder(),
+                       StringBuilderAdapter.builder());
+                addJob("java.lang.ProcessBuilder", 
+                       ProcessBuilderAdapter.builder());
+                rtJar = rt15Jar;
             }
 
+            Manifest mf = manifest(rtJar, installPath);
+            if (!force && isUpToDate(outputJar, mf)) {
+                System.out.println(outputJar + " is up to date");
+                return;
+            }
+
+            runJobs();
+            writeJarFile(rtJar, outputJar, installPath, mf);
+
         } catch (Exception e) {
             System.err.println("Bootstrap error: " + e);
             e.printStackTrace();
@@ -29,6 +29,8 @@ import org.objectweb.asm.Type;
 public class ClassLoaderAdapter extends ClassAdapter implements Opcodes
 {
     private String className;
+    private int version;
+    private final boolean wrapDefineClass;
 
     private static final List methodList;
 
@@ -47,13 +49,23 @@ public class ClassLoaderAdapter extends ClassAdapter implements Opcodes
         methodList = l;
     }
 
-    public ClassLoaderAdapter(ClassVisitor cv) { super(cv); }
+    /* When wrapDefineClass is false (agent mode, see jtaint.Agent), only the
+     * findLoadedClass export is added, and class instrumentation is left to
+     * a ClassFileTransformer.
+     */
+    public ClassLoaderAdapter(ClassVisitor cv, boolean wrapDefineClass) { 
+        super(cv); 
+        this.wrapDefineClass = wrapDefineClass;
+    }
+
+    public ClassLoaderAdapter(ClassVisitor cv) { this(cv, true); }
 
     public void visit(int version, int access, String name, 
             String signature, String superName, 
             String[] interfaces) 
     {
         this.className = name;
+        this.version = version;
         cv.visit(version, access, name, signature, superName, interfaces);
     }
 
@@ -61,52 +73,153 @@ public class ClassLoaderAdapter extends ClassAdapter implements Opcodes
             final String name, final String desc, String signature, 
             String[] exceptions) 
     {
-        return new WrapDefineClassCallAdapter(cv.visitMethod(access, name, desc,
-                                                        signature, exceptions));
+        MethodVisitor mv = cv.visitMethod(access, name, desc, signature, 
+                                          exceptions);
+        if (!wrapDefineClass)
+            return mv;
+        return new WrapDefineClassCallAdapter(mv);
     }
 
-    private void addDefineClassWrapper(String methodName, String methodDesc) {
-        MethodVisitor mv = cv.visitMethod(ACC_PRIVATE,
-                                       ByteCodeUtil.internalName("defineClass"),
-                                       methodDesc, null, null);
-        mv.visitCode();
+    /* Push all arguments after the buffer, offset and length */
+    private static void pushExtraArgs(MethodVisitor mv, Type[] args) {
+        int l = 5;
+        for (int i = 4; i < args.length; l += args[i].getSize(), i++)
+            mv.visitVarInsn(args[i].getOpcode(ILOAD), l);
+    }
+
+    /* Equivalent to the following Java code:
+     *
+     * Class @internal@defineClass(String name, byte[] b, int off, int len,
+     *                             ...) 
+     * {
+     *     byte[] instb = InstrumentationUtils.instrument(this, b, off, len);
+     *     return defineClassN(name, instb, 
+     *                         InstrumentationUtils.offset(instb, b, off),
+     *                         InstrumentationUtils.length(instb, b, len), 
+     *                         ...);
+     * }
+     *
+     * The caller's array is passed on untouched if it was not instrumented.
+     */
+    private void addArrayWrapper(MethodVisitor mv, String methodName, 
+                                 String methodDesc) 
+    {
+        Type[] args = Type.getArgumentTypes(methodDesc);
+        int l = 5;
+        for (int i = 4; i < args.length; i++)
+            l += args[i].getSize();
 
-        mv.visitVarInsn(ALOAD, 0); /* This */
-        mv.visitVarInsn(ALOAD, 1); /* String name */
-        mv.visitVarInsn(ALOAD, 2); /* Buffer (byte[] or ByteBuffer */
+        mv.visitVarInsn(ALOAD, 0); /* Defining loader */
+        mv.visitVarInsn(ALOAD, 2); /* byte[] */
         mv.visitVarInsn(ILOAD, 3); /* offset */
         mv.visitVarInsn(ILOAD, 4); /* len */
+        mv.visitMethodInsn(INVOKESTATIC, "jtaint/InstrumentationUtils",
+                           "instrument", "(Ljava/lang/ClassLoader;[BII)[B");
+        mv.visitVarInsn(ASTORE, l);
 
-        Type[] args = Type.getArgumentTypes(methodDesc);
-        Type[] newArgs = new Type[3];
-        System.arraycopy(args, 1, newArgs, 0, 3); /* Buffer, offset, len */
-        String newDesc = Type.getMethodDescriptor(newArgs[0], newArgs);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitVarInsn(ALOAD, l);
 
+        mv.visitVarInsn(ALOAD, l);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitVarInsn(ILOAD, 3);
         mv.visitMethodInsn(INVOKESTATIC, "jtaint/InstrumentationUtils",
-                           "instrument", newDesc);
-
-        if ("Ljava/nio/ByteBuffer;".equals(newArgs[0].getDescriptor())) {
-            mv.visitInsn(DUP);
-            mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer",
-                               "position", "()I");
-            mv.visitInsn(SWAP);
-            mv.visitInsn(DUP_X1);
-            mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer",
-                               "remaining", "()I");
-        } else {
-            mv.visitInsn(DUP);
-            mv.visitInsn(ARRAYLENGTH);
-            mv.visitInsn(ICONST_0);
-            mv.visitInsn(SWAP);
-        }
+                           "offset", "([B[BI)I");
+
+        mv.visitVarInsn(ALOAD, l);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitVarInsn(ILOAD, 4);
+        mv.visitMethodInsn(INVOKESTATIC, "jtaint/InstrumentationUtils",
+                           "length", "([B[BI)I");
 
-        /* Now push all additional arguments */
+        pushExtraArgs(mv, args);
+        mv.visitMethodInsn(INVOKESPECIAL, className, methodName, methodDesc);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(Math.max(l, 7), l + 1);
+    }
+
+    /* Equivalent to the following Java code:
+     *
+     * Class @internal@defineClass(String name, ByteBuffer b, int off, 
+     *                             int len, ...) 
+     * {
+     *     byte[] instb = InstrumentationUtils.instrument(this, b, off, len);
+     *     if (instb == null)
+     *         return defineClass2(name, b, off, len, ...);
+     *     return defineClass1(name, instb, 0, instb.length, ...);
+     * }
+     *
+     * Instrumented classes are defined from a heap array rather than a 
+     * newly allocated direct buffer.
+     */
+    private void addByteBufferWrapper(MethodVisitor mv, String methodName,
+                                      String methodDesc, String arrayName,
+                                      String arrayDesc)
+    {
+        Type[] args = Type.getArgumentTypes(methodDesc);
+        Label instrumented = new Label();
         int l = 5;
-        for (int i = 4; i < args.length; l += args[i].getSize(), i++)
-            mv.visitVarInsn(args[i].getOpcode(ILOAD), l);
+        for (int i = 4; i < args.length; i++)
+            l += args[i].getSize();
+
+        mv.visitVarInsn(ALOAD, 0); /* Defining loader */
+        mv.visitVarInsn(ALOAD, 2); /* ByteBuffer */
+        mv.visitVarInsn(ILOAD, 3); /* offset */
+        mv.visitVarInsn(ILOAD, 4); /* len */
+        mv.visitMethodInsn(INVOKESTATIC, "jtaint/InstrumentationUtils",
+                           "instrument", "(Ljava/lang/ClassLoader;"
+                           + "Ljava/nio/ByteBuffer;II)[B");
+        mv.visitVarInsn(ASTORE, l);
+        mv.visitVarInsn(ALOAD, l);
+        mv.visitJumpInsn(IFNONNULL, instrumented);
+
+        for (int i = 0; i < 5; i++)
+            mv.visitVarInsn(i < 3 ? ALOAD : ILOAD, i);
+        pushExtraArgs(mv, args);
         mv.visitMethodInsn(INVOKESPECIAL, className, methodName, methodDesc);
         mv.visitInsn(ARETURN);
-        mv.visitMaxs(l, l);
+
+        mv.visitLabel(instrumented);
+        if (version == V1_6)
+            mv.visitFrame(F_APPEND, 1, new Object[] { "[B" }, 0, null);
+
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitVarInsn(ALOAD, l);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ALOAD, l);
+        mv.visitInsn(ARRAYLENGTH);
+        pushExtraArgs(mv, args);
+        mv.visitMethodInsn(INVOKESPECIAL, className, arrayName, arrayDesc);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(Math.max(l, 5), l + 1);
+    }
+
+    private void addDefineClassWrapper(String methodName, String methodDesc) {
+        MethodVisitor mv = cv.visitMethod(ACC_PRIVATE,
+                                       ByteCodeUtil.internalName("defineClass"),
+                                       methodDesc, null, null);
+        mv.visitCode();
+
+        String bb = "Ljava/nio/ByteBuffer;";
+        int i = methodDesc.indexOf(bb);
+        if (i < 0) {
+            addArrayWrapper(mv, methodName, methodDesc);
+        } else {
+            /* The byte[] variant of a ByteBuffer define method */
+            String arrayDesc = methodDesc.substring(0, i) + "[B"
+                               + methodDesc.substring(i + bb.length());
+            String arrayName = null;
+
+            for (int j = 0; j < methodList.size(); j++) {
+                MethodDecl m = (MethodDecl) methodList.get(j);
+                if (arrayDesc.equals(m.type()))
+                    arrayName = m.name();
+            }
+            addByteBufferWrapper(mv, methodName, methodDesc, arrayName,
+                                 arrayDesc);
+        }
         mv.visitEnd();
     }
 
@@ -125,7 +238,7 @@ public class ClassLoaderAdapter extends ClassAdapter implements Opcodes
     }
 
     public void visitEnd() {
-        for (int i = 0; i < methodList.size(); i++) {
+        for (int i = 0; wrapDefineClass && i < methodList.size(); i++) {
             MethodDecl m = (MethodDecl) methodList.get(i);
             addDefineClassWrapper(m.name(), m.type());
         }
@@ -156,16 +269,29 @@ public class ClassLoaderAdapter extends ClassAdapter implements Opcodes
     }
 
     public static InstrumentationBuilder builder() { 
-        return Builder.getInstance(); 
+        return builder(true);
+    }
+
+    public static InstrumentationBuilder builder(boolean wrapDefineClass) { 
+        return Builder.getInstance(wrapDefineClass); 
     }
 
     private static class Builder implements InstrumentationBuilder {
-        private static final Builder b = new Builder();
+        private static final Builder b = new Builder(true);
+        private static final Builder agentb = new Builder(false);
+
+        private final boolean wrapDefineClass;
 
-        public static InstrumentationBuilder getInstance() { return b; }
+        private Builder(boolean wrapDefineClass) { 
+            this.wrapDefineClass = wrapDefineClass;
+        }
+
+        public static InstrumentationBuilder getInstance(boolean wrap) { 
+            return wrap ? b : agentb; 
+        }
 
         public ClassVisitor build(ClassVisitor cv) {
-            return new ClassLoaderAdapter(cv);
+            return new ClassLoaderAdapter(cv, wrapDefineClass);
         }
     }
 }
@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/* Writes a jar file, copying the entries of an existing jar verbatim.
+ * JarInputStream and JarOutputStream inflate and deflate every entry they
+ * copy, which is most of the time spent writing a bootlib. Instead, the
+ * central directory of the source jar is read to find each entry, and its
+ * local header and compressed data are copied as they are. Only new
+ * entries are compressed. Zip64 archives are not supported.
+ */
+
+final class JarWriter
+{
+    private static final int LOCAL_SIG   = 0x04034b50;
+    private static final int CENTRAL_SIG = 0x02014b50;
+    private static final int END_SIG     = 0x06054b50;
+    private static final int UTF8_FLAG   = 0x0800;
+
+    private final OutputStream out;
+    private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private final int dosTime;
+    private long offset;
+    private int count;
+
+    /* An entry of the source jar */
+    private static final class Entry
+    {
+        final String name;
+        final long offset;
+        final byte[] record; /* Central directory record */
+
+        Entry(String name, long offset, byte[] record) {
+            this.name = name;
+            this.offset = offset;
+            this.record = record;
+        }
+    }
+
+    public JarWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 65536);
+        this.dosTime = dosTime(System.currentTimeMillis());
+    }
+
+    private static int dosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+
+        return ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21)
+               | (c.get(Calendar.DAY_OF_MONTH) << 16)
+               | (c.get(Calendar.HOUR_OF_DAY) << 11)
+               | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+    }
+
+    private static int getShort(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8);
+    }
+
+    private static long getInt(byte[] b, int i) {
+        return getShort(b, i) | ((long) getShort(b, i + 2) << 16);
+    }
+
+    private static void putInt(byte[] b, int i, long v) {
+        for (int j = 0; j < 4; j++)
+            b[i + j] = (byte) (v >>> (8 * j));
+    }
+
+    private static void writeShort(OutputStream os, int v)
+        throws IOException
+    {
+        os.write(v & 0xff);
+        os.write((v >>> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream os, long v) throws IOException {
+        writeShort(os, (int) (v & 0xffff));
+        writeShort(os, (int) ((v >>> 16) & 0xffff));
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        offset += len;
+    }
+
+    /* Read the central directory of a jar, and return its entries sorted by
+     * offset. The data of each entry extends up to the next one.
+     */
+    private static List readEntries(RandomAccessFile raf, long[] end)
+        throws IOException
+    {
+        long len = raf.length();
+        int tail = (int) Math.min(len, 22 + 65535);
+        byte[] b = new byte[tail];
+
+        raf.seek(len - tail);
+        raf.readFully(b);
+
+        int i = tail - 22;
+        while (i >= 0 && getInt(b, i) != END_SIG)
+            i--;
+        if (i < 0)
+            throw new IOException("No end of central directory record");
+
+        int n = getShort(b, i + 10);
+        long cdSize = getInt(b, i + 12);
+        long cdOffset = getInt(b, i + 16);
+        if (n == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL)
+            throw new IOException("Zip64 archives are not supported");
+
+        byte[] cd = new byte[(int) cdSize];
+        raf.seek(cdOffset);
+        raf.readFully(cd);
+
+        List l = new ArrayList(n);
+        for (int j = 0, p = 0; j < n; j++) {
+            if (getInt(cd, p) != CENTRAL_SIG)
+                throw new IOException("Invalid central directory");
+
+            int nameLen = getShort(cd, p + 28);
+            int recLen = 46 + nameLen + getShort(cd, p + 30)
+                         + getShort(cd, p + 32);
+            byte[] rec = new byte[recLen];
+            System.arraycopy(cd, p, rec, 0, recLen);
+
+            String name = new String(cd, p + 46, nameLen, "UTF-8");
+            l.add(new Entry(name, getInt(cd, p + 42), rec));
+            p += recLen;
+        }
+
+        Collections.sort(l, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long x = ((Entry) o1).offset, y = ((Entry) o2).offset;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        end[0] = cdOffset;
+        return l;
+    }
+
+    /** Copy all entries of jar file, except those named in skip */
+    public void copyEntries(String file, Set skip) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] buf = new byte[65536];
+
+        try {
+            long[] end = new long[1];
+            List l = readEntries(raf, end);
+
+            for (int i = 0; i < l.size(); i++) {
+                Entry e = (Entry) l.get(i);
+                long next = i + 1 < l.size() ? ((Entry) l.get(i + 1)).offset
+                                             : end[0];
+                if (skip.contains(e.name))
+                    continue;
+
+                raf.seek(e.offset);
+                raf.readFully(buf, 0, 4);
+                if (getInt(buf, 0) != LOCAL_SIG)
+                    throw new IOException("Invalid local header for "
+                                          + e.name);
+
+                putInt(e.record, 42, offset);
+                central.write(e.record);
+                count++;
+
+                write(buf, 0, 4);
+                for (long n = next - e.offset - 4; n > 0; ) {
+                    int r = (int) Math.min(n, buf.length);
+                    raf.readFully(buf, 0, r);
+                    write(buf, 0, r);
+                    n -= r;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Add a new entry, compressed */
+    public void putEntry(String name, byte[] b) throws IOException {
+        byte[] nb = name.getBytes("UTF-8");
+        CRC32 crc = new CRC32();
+        crc.update(b);
+
+        Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(b.length);
+        byte[] buf = new byte[8192];
+
+        def.setInput(b);
+        def.finish();
+        while (!def.finished()) {
+            int n = def.deflate(buf);
+            bos.write(buf, 0, n);
+        }
+        def.end();
+        byte[] data = bos.toByteArray();
+
+        ByteArrayOutputStream h = new ByteArrayOutputStream();
+        writeInt(h, LOCAL_SIG);
+        writeShort(h, 20);                  /* Version needed */
+        writeShort(h, UTF8_FLAG);
+        writeShort(h, Deflater.DEFLATED);
+        writeInt(h, dosTime);
+        writeInt(h, crc.getValue());
+        writeInt(h, data.length);
+        writeInt(h, b.length);
+        writeShort(h, nb.length);
+        writeShort(h, 0);                   /* Extra field length */
+
+        writeInt(central, CENTRAL_SIG);
+        writeShort(central, 20);            /* Version made by */
+        writeShort(central, 20);            /* Version needed */
+        writeShort(central, UTF8_FLAG);
+        writeShort(central, Deflater.DEFLATED);
+        writeInt(central, dosTime);
+        writeInt(central, crc.getValue());
+        writeInt(central, data.length);
+        writeInt(central, b.length);
+        writeShort(central, nb.length);
+        writeShort(central, 0);             /* Extra field length */
+        writeShort(central, 0);             /* Comment length */
+        writeShort(central, 0);             /* Disk number */
+        writeShort(central, 0);             /* Internal attributes */
+        writeInt(central, 0);               /* External attributes */
+        writeInt(central, offset);
+        central.write(nb);
+        count++;
+
+        byte[] hb = h.toByteArray();
+        write(hb, 0, hb.length);
+        write(nb, 0, nb.length);
+        write(data, 0, data.length);
+    }
+
+    /** Write the central directory, and close the output stream */
+    public void close() throws IOException {
+        long cdOffset = offset;
+        byte[] cd = central.toByteArray();
+
+        if (count >= 0xffff || cdOffset + cd.length >= 0xffffffffL)
+            throw new IOException("Zip64 archives are not supported");
+
+        write(cd, 0, cd.length);
+        writeInt(out, END_SIG);
+        writeShort(out, 0);                 /* Disk number */
+        writeShort(out, 0);                 /* Central directory disk */
+        writeShort(out, count);
+        writeShort(out, count);
+        writeInt(out, cd.length);
+        writeInt(out, cdOffset);
+        writeShort(out, 0);                 /* Comment length */
+        out.close();
+    }
+}
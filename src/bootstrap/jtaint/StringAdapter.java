@@ -20,6 +20,7 @@ import java.util.List;
 
 import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.MethodVisitor;
@@ -31,6 +32,16 @@ import org.objectweb.asm.commons.AdviceAdapter;
  * are instrumented to propagate taint. Additionally, new constructors
  * and methods are provided to initialize taint and query taint information,
  * respectively.
+ *
+ * Taint is kept in its own field, apart from the character storage, and
+ * only ever depends on the String length. We do not assume a particular
+ * character layout: constructors that share characters copy every instance
+ * field declared by String (value, offset, count and hash on JRE 1.4-1.6),
+ * and the length is read from count when String declares it, or from 
+ * length() otherwise. The String copy constructor shares encoded storage
+ * (such as a compact byte array and coder) as-is. Tainted Strings are always
+ * built from a char[], through String(char[], int, int), so whatever storage
+ * that constructor chooses for the characters is used.
  */
 
 public class StringAdapter extends StubAdapter implements Opcodes
@@ -38,6 +49,8 @@ public class StringAdapter extends StubAdapter implements Opcodes
     private static final List methodList;
     private String className;
     private int version;
+    private final List layout = new ArrayList();
+    private boolean hasCount;
 
     static {
         List l = new ArrayList();
@@ -72,11 +85,43 @@ public class StringAdapter extends StubAdapter implements Opcodes
         super.visit(version, access, name, signature, superName, interfaces);
     }
 
+    public FieldVisitor visitField(int access, String name, String desc,
+                                   String signature, Object value)
+    {
+        if ((access & ACC_STATIC) == 0) {
+            layout.add(new String[] { name, desc });
+            if ("count".equals(name) && "I".equals(desc))
+                hasCount = true;
+        }
+        return super.visitField(access, name, desc, signature, value);
+    }
+
+    /** Push the length of the String on top of the stack */
+    private void getLength(MethodVisitor mv) {
+        if (hasCount)
+            mv.visitFieldInsn(GETFIELD, className, "count", "I");
+        else
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "length", "()I");
+    }
+
     /** Wrap String methods that create new Strings so that taint is propagated.
      * Wrappers call the original method, and then call a helper routine in
      * jtaint with the original String object, method arguments, and the
      * return value from the original method. The jtaint helper then 
      * returns a String with the appropriate taint value.
+     *
+     * Nearly all Strings are untainted, so the wrapper first tests the taint
+     * fields of this String and of any String arguments, and returns the
+     * result directly if they are all null. The wrapper stays small enough
+     * to be inlined, and the helper is only called on the tainted path.
+     * Equivalent to the following Java code for concat:
+     *
+     * public String concat(String str) {
+     *     String result = realConcat(str);
+     *     if (taint == null && str.taint == null)
+     *         return result;
+     *     return StringUtil.concat(this, str, result);
+     * }
      */
 
     private void buildTaintWrapper(MethodVisitor mv, String name, String desc)
@@ -94,6 +139,33 @@ public class StringAdapter extends StubAdapter implements Opcodes
                            ByteCodeUtil.internalName(name), desc);
         mv.visitVarInsn(ASTORE, l);
 
+        /* Untainted fast path. The original method has already thrown a
+         * NullPointerException for any null String argument.
+         */
+        Label slow = new Label();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, 
+                          ByteCodeUtil.internalName("taint"), "Ljtaint/Taint;");
+        mv.visitJumpInsn(IFNONNULL, slow);
+
+        for (int i = 0, m = 1; i < t.length; m += t[i].getSize(), i++) {
+            if (t[i].getSort() != Type.OBJECT 
+                    || !"java/lang/String".equals(t[i].getInternalName()))
+                continue;
+            mv.visitVarInsn(ALOAD, m);
+            mv.visitFieldInsn(GETFIELD, className, 
+                          ByteCodeUtil.internalName("taint"), "Ljtaint/Taint;");
+            mv.visitJumpInsn(IFNONNULL, slow);
+        }
+
+        mv.visitVarInsn(ALOAD, l);
+        mv.visitInsn(ARETURN);
+
+        mv.visitLabel(slow);
+        if (version == V1_6)
+            mv.visitFrame(F_APPEND, 1, new Object[] { "java/lang/String" }, 
+                          0, null);
+
         mv.visitVarInsn(ALOAD, 0);
         l = 1;
         for (int i = 0; i < t.length; l += t[i].getSize(), i++) 
@@ -138,7 +210,7 @@ public class StringAdapter extends StubAdapter implements Opcodes
         mv.visitVarInsn(ALOAD, 0);
         mv.visitVarInsn(ILOAD, 1);
         mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, "count", "I");
+        getLength(mv);
         mv.visitMethodInsn(INVOKEVIRTUAL, className, "substring",
                            "(II)Ljava/lang/String;");
         mv.visitInsn(ARETURN);
@@ -184,19 +256,30 @@ public class StringAdapter extends StubAdapter implements Opcodes
         mv.visitFieldInsn(PUTFIELD, className, name, desc);
     }
 
-    /** Force the String constructor to just copy all fields */
+    /** Copy every instance field declared by String (but not taint) */
+    private int copyLayout(MethodVisitor mv) {
+        int size = 2;
+        for (int i = 0; i < layout.size(); i++) {
+            String[] f = (String[]) layout.get(i);
+            copyField(mv, f[0], f[1]);
+            size = Math.max(size, 1 + Type.getType(f[1]).getSize());
+        }
+        return size;
+    }
+
+    /** Force the String constructor to just copy all fields, including
+     * the cached hash code
+     */
     private void replaceConstructorString(MethodVisitor mv) {
         mv.visitCode();
         mv.visitVarInsn(ALOAD, 0);
         mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
 
-        copyField(mv, "offset", "I");
-        copyField(mv, "count", "I");
-        copyField(mv, "value", "[C");
-        copyField(mv, ByteCodeUtil.internalName("tainted"), "Z");
+        int size = copyLayout(mv);
+        copyField(mv, ByteCodeUtil.internalName("taint"), "Ljtaint/Taint;");
 
         mv.visitInsn(RETURN);
-        mv.visitMaxs(2, 2);
+        mv.visitMaxs(size, 2);
         mv.visitEnd();
     }
 
@@ -316,14 +399,12 @@ public class StringAdapter extends StubAdapter implements Opcodes
     }
 
     /** Create a new method that returns a Taint object representing the taint
-     * for this String. Equivalent to the following Java code:
+     * for this String. The stored taint is shared with other Strings, so
+     * callers always receive a private copy. Equivalent to the following
+     * Java code:
      * 
      * public Taint taint() {
-     *     if (!tainted) {
-     *         return null;
-     *     } else {
-     *         return jtaint.StringUtil.stringToTaint(value, count);
-     *     }
+     *     return jtaint.StringUtil.stringToTaint(taint, count);
      * }
      */
 
@@ -335,122 +416,242 @@ public class StringAdapter extends StubAdapter implements Opcodes
 
         mv.visitVarInsn(ALOAD, 0);
         mv.visitFieldInsn(GETFIELD, className, 
-                          ByteCodeUtil.internalName("tainted"), "Z");
+                          ByteCodeUtil.internalName("taint"), "Ljtaint/Taint;");
+        mv.visitVarInsn(ALOAD, 0);
+        getLength(mv);
+        mv.visitMethodInsn(INVOKESTATIC, "jtaint/StringUtil", "stringToTaint",
+                           "(Ljtaint/Taint;I)Ljtaint/Taint;");
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(2, 1);
+        mv.visitEnd();
+    }
+
+    /** Create a new method that returns true if every character of this
+     * String is tainted. Equivalent to the following Java code:
+     *
+     * public boolean isFullyTainted() {
+     *     return jtaint.StringUtil.isFullyTainted(taint);
+     * }
+     */
+
+    private void addIsFullyTaintedMethod(ClassVisitor cv) {
+        MethodVisitor mv = cv.visitMethod(ACC_PUBLIC + ACC_FINAL,
+                                   ByteCodeUtil.internalName("isFullyTainted"),
+                                   "()Z", null, null);
+        mv.visitCode();
+
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, 
+                          ByteCodeUtil.internalName("taint"), "Ljtaint/Taint;");
+        mv.visitMethodInsn(INVOKESTATIC, "jtaint/StringUtil", "isFullyTainted",
+                           "(Ljtaint/Taint;)Z");
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(1, 1);
+        mv.visitEnd();
+    }
+
+    /** Create a new method that puts the taint of this String into a Taint
+     * at the given offset, without copying the stored Taint. Equivalent to
+     * the following Java code:
+     *
+     * public void taintInto(Taint dst, int offset) {
+     *     jtaint.StringUtil.taintInto(taint, count, dst, offset);
+     * }
+     */
+
+    private void addTaintIntoMethod(ClassVisitor cv) {
+        MethodVisitor mv = cv.visitMethod(ACC_PUBLIC + ACC_FINAL,
+                                        ByteCodeUtil.internalName("taintInto"),
+                                        "(Ljtaint/Taint;I)V", null, null);
+        mv.visitCode();
+
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, 
+                          ByteCodeUtil.internalName("taint"), "Ljtaint/Taint;");
+        mv.visitVarInsn(ALOAD, 0);
+        getLength(mv);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitMethodInsn(INVOKESTATIC, "jtaint/StringUtil", "taintInto",
+                           "(Ljtaint/Taint;ILjtaint/Taint;I)V");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(4, 3);
+        mv.visitEnd();
+    }
+
+    /** Create a new method that queries the taint of this String in place,
+     * without copying the Taint object. Equivalent to the following Java 
+     * code:
+     *
+     * public boolean isTaintedAt(int index) {
+     *     return jtaint.StringUtil.isTaintedAt(taint, count, index);
+     * }
+     *
+     * nextTaintedIndex and nextUntaintedIndex are built the same way, but
+     * return an int index.
+     */
+
+    private void addTaintQueryMethod(ClassVisitor cv, String name, 
+                                     String returnDesc)
+    {
+        MethodVisitor mv = cv.visitMethod(ACC_PUBLIC + ACC_FINAL,
+                                          ByteCodeUtil.internalName(name),
+                                          "(I)" + returnDesc, null, null);
+        mv.visitCode();
+
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, 
+                          ByteCodeUtil.internalName("taint"), "Ljtaint/Taint;");
+        mv.visitVarInsn(ALOAD, 0);
+        getLength(mv);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitMethodInsn(INVOKESTATIC, "jtaint/StringUtil", name,
+                           "(Ljtaint/Taint;II)" + returnDesc);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(3, 2);
+        mv.visitEnd();
+    }
+
+    /** Create a new method that returns true if any character of this String
+     * is tainted. Equivalent to the following Java code:
+     *
+     * public boolean isTainted() {
+     *     return taint != null;
+     * }
+     */
+
+    private void addIsTaintedMethod(ClassVisitor cv) {
+        MethodVisitor mv = cv.visitMethod(ACC_PUBLIC + ACC_FINAL,
+                                        ByteCodeUtil.internalName("isTainted"),
+                                        "()Z", null, null);
+        mv.visitCode();
+
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, 
+                          ByteCodeUtil.internalName("taint"), "Ljtaint/Taint;");
 
         Label l = new Label();
-        mv.visitJumpInsn(IFNE, l);
-        mv.visitInsn(ACONST_NULL);
-        mv.visitInsn(ARETURN);
+        mv.visitJumpInsn(IFNONNULL, l);
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
 
         mv.visitLabel(l);
         if (version == V1_6)
             mv.visitFrame(F_SAME, 0, null, 0, null);
-
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, "value", "[C");
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, "count", "I");
-        mv.visitMethodInsn(INVOKESTATIC, "jtaint/StringUtil",
-                           "stringToTaint", "([CI)Ljtaint/Taint;");
-        mv.visitInsn(ARETURN);
-        mv.visitMaxs(4,1);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(1, 1);
         mv.visitEnd();
     }
 
-    /** Add a new constructor to a create a (partially or fully) tainted 
-     * String. Equivalent to the following Java code:
+    /** Add new constructors to create a (partially or fully) tainted 
+     * String. The new String shares the characters of original, and only
+     * stores a reference to an immutable copy of t. If shared is true, the
+     * caller hands t over to the String and must never modify it again, so
+     * no copy is made. Equivalent to the following Java code:
      *
      * public String(String original, Taint t) {
-     *     super();
-     *     this.count = original.count;
+     *     this(original, t, false);
+     * }
      *
-     *     if (!t.isTainted()) {
-     *         this.offset = original.offset;
-     *         this.value = original.value;
-     *         this.tainted = original.tainted;
-     *         return
-     *     }
+     * public String(String original, Taint t, boolean shared) {
+     *     super();
+     *     this.value = original.value; // and every other instance field
+     *     this.taint = jtaint.StringUtil.stringTaint(original.taint, 
+     *                                                original.count, t,
+     *                                                shared);
+     * }
      *
-     *     this.offset = 0;
-     *     this.value = jtaint.StringUtil.taintToString(original, t)
-     *     if (this.value.length == this.count)
-     *         this.tainted = false;
-     *     else
-     *         this.tainted = true;
-     *     return;
-     * The final check (if value.length == count) is true only when an error
-     * occurs during the execution of taintToString
+     * stringTaint returns original.taint if t is null or untainted, so that
+     * an untainted Taint leaves the copy identical to original.
+     * A fully tainted t is stored as the shared StringUtil.FULL marker rather
+     * than as a copy.
      */
 
     private void addConstructor(ClassVisitor cv) {
+        String taintField = ByteCodeUtil.internalName("taint");
         MethodVisitor mv = cv.visitMethod(ACC_PUBLIC, "<init>",
                                 "(Ljava/lang/String;Ljtaint/Taint;)V",
                                  null, null);
         mv.visitCode();
         mv.visitVarInsn(ALOAD, 0);
-        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
-
-        copyField(mv, "count", "I");
-
-        Label l0 = new Label();
+        mv.visitVarInsn(ALOAD, 1);
         mv.visitVarInsn(ALOAD, 2);
-        mv.visitMethodInsn(INVOKEVIRTUAL, "jtaint/Taint",
-                           "isTainted", "()Z");
-        mv.visitJumpInsn(IFNE, l0);
-
-        /* Taint object is actually untainted, copy all fields and return */
-        copyField(mv, "offset", "I");
-        copyField(mv, "value", "[C");
-        copyField(mv, ByteCodeUtil.internalName("tainted"), "Z");
+        mv.visitInsn(ICONST_0);
+        mv.visitMethodInsn(INVOKESPECIAL, className, "<init>",
+                           "(Ljava/lang/String;Ljtaint/Taint;Z)V");
         mv.visitInsn(RETURN);
+        mv.visitMaxs(4, 3);
+        mv.visitEnd(); 
 
-        mv.visitLabel(l0);
-        if (version == V1_6)
-            mv.visitFrame(F_SAME, 0, null, 0, null);
+        mv = cv.visitMethod(ACC_PUBLIC, "<init>",
+                            "(Ljava/lang/String;Ljtaint/Taint;Z)V", null, null);
+        mv.visitCode();
         mv.visitVarInsn(ALOAD, 0);
-        mv.visitInsn(ICONST_0);
-        mv.visitFieldInsn(PUTFIELD, className, "offset", "I");
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+
+        int size = copyLayout(mv);
 
         mv.visitVarInsn(ALOAD, 0);
         mv.visitVarInsn(ALOAD, 1);
+        mv.visitFieldInsn(GETFIELD, className, taintField, "Ljtaint/Taint;");
+        mv.visitVarInsn(ALOAD, 1);
+        getLength(mv);
         mv.visitVarInsn(ALOAD, 2);
-        mv.visitMethodInsn(INVOKESTATIC, "jtaint/StringUtil",
-                           "taintToString", 
-                           "(Ljava/lang/String;Ljtaint/Taint;)[C");
-        mv.visitInsn(DUP_X1);
-        mv.visitFieldInsn(PUTFIELD, className, "value", "[C");
-        mv.visitInsn(ARRAYLENGTH);
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, "count", "I");
+        mv.visitVarInsn(ILOAD, 3);
+        mv.visitMethodInsn(INVOKESTATIC, "jtaint/StringUtil", "stringTaint",
+                           "(Ljtaint/Taint;ILjtaint/Taint;Z)Ljtaint/Taint;");
+        mv.visitFieldInsn(PUTFIELD, className, taintField, "Ljtaint/Taint;");
 
-        Label l1 = new Label();
-        mv.visitJumpInsn(IF_ICMPEQ, l1);
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitInsn(ICONST_1);
-        mv.visitFieldInsn(PUTFIELD, className, 
-                          ByteCodeUtil.internalName("tainted"), "Z");
         mv.visitInsn(RETURN);
+        mv.visitMaxs(Math.max(size, 5), 4);
+        mv.visitEnd(); 
+    }
 
-        mv.visitLabel(l1);
-        if (version == V1_6)
-            mv.visitFrame(F_SAME, 0, null, 0, null);
+    /** Add a new constructor that copies characters from a char array and
+     * taints them in the same step, so that tainted StringBuilder and 
+     * StringBuffer toString() calls allocate a single String. The builder
+     * keeps modifying its own taint, so t is always copied. Equivalent to 
+     * the following Java code:
+     *
+     * public String(char[] value, int offset, int count, Taint t) {
+     *     this(value, offset, count);
+     *     this.taint = jtaint.StringUtil.stringTaint(null, this.count, t,
+     *                                                false);
+     * }
+     */
+
+    private void addCharsConstructor(ClassVisitor cv) {
+        MethodVisitor mv = cv.visitMethod(ACC_PUBLIC, "<init>",
+                                          "([CIILjtaint/Taint;)V", null, null);
+        mv.visitCode();
         mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitVarInsn(ILOAD, 3);
+        mv.visitMethodInsn(INVOKESPECIAL, className, "<init>", "([CII)V");
+
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitVarInsn(ALOAD, 0);
+        getLength(mv);
+        mv.visitVarInsn(ALOAD, 4);
         mv.visitInsn(ICONST_0);
+        mv.visitMethodInsn(INVOKESTATIC, "jtaint/StringUtil", "stringTaint",
+                           "(Ljtaint/Taint;ILjtaint/Taint;Z)Ljtaint/Taint;");
         mv.visitFieldInsn(PUTFIELD, className, 
-                          ByteCodeUtil.internalName("tainted"), "Z");
+                          ByteCodeUtil.internalName("taint"), "Ljtaint/Taint;");
 
         mv.visitInsn(RETURN);
-
-        mv.visitMaxs(3, 3);
+        mv.visitMaxs(5, 5);
         mv.visitEnd(); 
     }
 
     public void onEndBuildStubs() {
-        String internalField = ByteCodeUtil.internalName("tainted"); 
+        String internalField = ByteCodeUtil.internalName("taint"); 
         cv.visitField(ACC_PRIVATE + ACC_TRANSIENT + ACC_FINAL,
-                internalField, "Z", null, null).visitEnd();
-        ByteCodeUtil.buildGetter(cv, className, internalField, "Z", ACC_FINAL, 
-                                 ByteCodeUtil.internalName("isTainted"));
+                internalField, "Ljtaint/Taint;", null, null).visitEnd();
+        addIsTaintedMethod(cv);
 
         /* Build export wrappers for jtaint/StringUtil */
 
@@ -479,10 +680,16 @@ public class StringAdapter extends StubAdapter implements Opcodes
 
         addIsErrorMethod(cv);
         addTaintMethod(cv);
+        addIsFullyTaintedMethod(cv);
+        addTaintIntoMethod(cv);
+        addTaintQueryMethod(cv, "isTaintedAt", "Z");
+        addTaintQueryMethod(cv, "nextTaintedIndex", "I");
+        addTaintQueryMethod(cv, "nextUntaintedIndex", "I");
         addConstructor(cv);
+        addCharsConstructor(cv);
     }
 
-    /** By default, initialize the new boolean field 'tainted' to false for
+    /** By default, initialize the new Taint field 'taint' to null for
      * all constructors.
      */
     private static class TaintedInitAdapter extends AdviceAdapter 
@@ -509,9 +716,10 @@ public class StringAdapter extends StubAdapter implements Opcodes
                 return;
 
             mv.visitVarInsn(ALOAD, savedThis);
-            mv.visitInsn(ICONST_0);
+            mv.visitInsn(ACONST_NULL);
             mv.visitFieldInsn(PUTFIELD, className, 
-                              ByteCodeUtil.internalName("tainted"), "Z");
+                              ByteCodeUtil.internalName("taint"), 
+                              "Ljtaint/Taint;");
         }
 
         public void visitMaxs(int nStack, int nLocals) {
@@ -15,18 +15,40 @@
  */
 package jtaint;
 
+import java.io.IOException;
+
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodAdapter;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 
 import org.objectweb.asm.commons.AdviceAdapter;
 
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
 /** Add taint tracking to StringBuilder (and StringBuffer objects). Methods 
  * that modify the StringBuilder/StringBuffer are instrumented to 
  * propagate taint. Additionally, new constructors and methods are provided to 
@@ -280,15 +302,25 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
 
     /** Equivalent to the following Java code: 
      * public String toString() {
-     *     s = new String(value, 0, count);
-     *     if (taint == null || !taint.isTainted())
-     *         return s;
-     *     return new String(s, taint);
+     *     if (taint == null)
+     *         return new String(value, 0, count);
+     *     return new String(value, 0, count, taint);
      * }
+     *
+     * The tainting constructor copies the characters once, and leaves the
+     * String untainted if no character is tainted. No intermediate String
+     * is built.
      */
     private void replaceToString(MethodVisitor mv) {
         mv.visitCode();
 
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className,
+                      ByteCodeUtil.internalName("taint"), 
+                      "Ljtaint/Taint;");
+        Label l0 = new Label();
+        mv.visitJumpInsn(IFNONNULL, l0);
+
         mv.visitTypeInsn(NEW, "java/lang/String");
         mv.visitInsn(DUP);
         mv.visitVarInsn(ALOAD, 0);
@@ -298,47 +330,26 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
         mv.visitFieldInsn(GETFIELD, className, "count", "I");
         mv.visitMethodInsn(INVOKESPECIAL, "java/lang/String", "<init>",
                            "([CII)V");
-
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className,
-                      ByteCodeUtil.internalName("taint"), 
-                      "Ljtaint/Taint;");
-        Label l0 = new Label();
-        mv.visitJumpInsn(IFNONNULL, l0);
         mv.visitInsn(ARETURN);
 
         mv.visitLabel(l0);
         if (version == V1_6) 
-            mv.visitFrame(F_SAME1, 0, null, 1, 
-                          new Object[] { "java/lang/String" });
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, 
-                          ByteCodeUtil.internalName("taint"),
-                          "Ljtaint/Taint;");
-        mv.visitMethodInsn(INVOKEVIRTUAL, "jtaint/Taint",
-                           "isTainted", "()Z");
-
-        Label l1 = new Label();
-        mv.visitJumpInsn(IFNE, l1);
-        mv.visitInsn(ARETURN);
-
-        mv.visitLabel(l1);
-        if (version == V1_6) 
-            mv.visitFrame(F_SAME1, 0, null, 1, 
-                          new Object[] { "java/lang/String" });
+            mv.visitFrame(F_SAME, 0, null, 0, null);
         mv.visitTypeInsn(NEW, "java/lang/String");
-        mv.visitInsn(DUP_X1);
-        mv.visitInsn(SWAP);
-
+        mv.visitInsn(DUP);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, "value", "[C");
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, "count", "I");
         mv.visitVarInsn(ALOAD, 0);
         mv.visitFieldInsn(GETFIELD, className, 
                           ByteCodeUtil.internalName("taint"),
                           "Ljtaint/Taint;");
         mv.visitMethodInsn(INVOKESPECIAL, "java/lang/String", "<init>",
-                           "(Ljava/lang/String;Ljtaint/Taint;)V");
-
+                           "([CIILjtaint/Taint;)V");
         mv.visitInsn(ARETURN);
-        mv.visitMaxs(5, 1);
+        mv.visitMaxs(6, 1);
         mv.visitEnd();
     }
 
@@ -362,8 +373,8 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
 
     /** When called on a function methodName, define methodName to convert its
      * arguments to a String using String.valueOf, and then recursively invoke
-     * methodName on the String value. Used for instrumenting append and insert
-     * methods.
+     * methodName on the String value. Used for instrumenting append(Object)
+     * and insert(int, Object), whose arguments must be converted anyway.
      *
      * Instrumenting the method methodName produces bytecode equivalent to the
      * following Java code:
@@ -415,13 +426,6 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
         new InstrumentationLockBuilder(mv, version, className, methodName, desc)
         {
             public void onUnlocked() { 
-                String taintDesc;
-
-                if (offset == 0) /* Append */
-                    taintDesc = "(Ljtaint/Taint;ILjtaint/Taint;I)Ljtaint/Taint;";
-                else             /* Insert */
-                    taintDesc = "(Ljtaint/Taint;IILjtaint/Taint;I)Ljtaint/Taint;";
-
                 /* Handle null arguments safely */
                 mv.visitVarInsn(ALOAD, offset + 1);
                 mv.visitMethodInsn(INVOKESTATIC, "java/lang/String",
@@ -429,10 +433,10 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
                                    "(Ljava/lang/Object;)Ljava/lang/String;");
                 mv.visitVarInsn(ASTORE, offset + 1);
 
-
                 /* Now update taint -- the string argument 
                  * or the current StringBuilder may have a null taint, 
-                 * so we rely on a helper method
+                 * so we rely on a helper method. Note that count has 
+                 * already been updated by the append or insert.
                  */
                 mv.visitVarInsn(ALOAD, 0);
                 mv.visitFieldInsn(GETFIELD, className, 
@@ -441,39 +445,133 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
                 mv.visitVarInsn(ALOAD, 0);
                 mv.visitFieldInsn(GETFIELD, className, "count", "I");
 
-                /* Fun situation -- Note here that the count has already been
-                 * updated by the append function, so we actually need to
-                 * subtract the string argument's length to compute the correct
-                 * value to pass to TaintUtil. TaintUtil is expected the 
-                 * number of characters in the StringBuilder _BEFORE_ the 
-                 * append
-                 */
-                mv.visitVarInsn(ALOAD, offset + 1);
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String",
-                                   "length", "()I");
-                mv.visitInsn(ISUB);
-
                 if (offset == 1) 
                     mv.visitVarInsn(ILOAD, offset);
 
                 mv.visitVarInsn(ALOAD, offset + 1);
-                mv.visitInsn(DUP);
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String",
-                                   ByteCodeUtil.internalName("taint"), 
-                                   "()Ljtaint/Taint;");
+
+                if (offset == 0) /* Append */
+                    mv.visitMethodInsn(INVOKESTATIC, "jtaint/TaintUtil",
+                               "appendString", 
+                               "(Ljtaint/Taint;ILjava/lang/String;)Ljtaint/Taint;");
+                else             /* Insert */
+                    mv.visitMethodInsn(INVOKESTATIC, "jtaint/TaintUtil",
+                               "insertString", 
+                               "(Ljtaint/Taint;IILjava/lang/String;)Ljtaint/Taint;");
+
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitInsn(SWAP);
+                mv.visitFieldInsn(PUTFIELD, className, 
+                                  ByteCodeUtil.internalName("taint"), 
+                                  "Ljtaint/Taint;");
+            }
+        }.build(LockOptimizer.mayReenter(methodName, desc));
+    }
+
+    /** Return the internal name of the class of the appended or inserted
+     * argument of an append or insert method, or null if it is a primitive
+     * type or array.
+     */
+    private static String valueArgument(String desc, int offset) {
+        Type t = Type.getArgumentTypes(desc)[offset];
+        return t.getSort() == Type.OBJECT ? t.getInternalName() : null;
+    }
+
+    /** Primitives and char arrays are never tainted, so appending or 
+     * inserting them only extends the taint with untainted characters. No
+     * String is created. Equivalent to the following Java code for append,
+     * run once the lock is released:
+     *
+     * taint = TaintUtil.appendUntainted(taint, count);
+     *
+     * and for insert(offset, ...):
+     *
+     * taint = TaintUtil.insertUntainted(taint, count, offset);
+     */
+    private void buildUntaintedWrapper(final MethodVisitor mv, 
+                                       final String methodName,
+                                       final String desc) 
+    {
+        final boolean isAppend = "append".equals(methodName);
+
+        new InstrumentationLockBuilder(mv, version, className, methodName, desc)
+        {
+            public void onUnlocked() { 
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, 
+                        ByteCodeUtil.internalName("taint"), 
+                        "Ljtaint/Taint;");
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, "count", "I");
+
+                if (isAppend)
+                    mv.visitMethodInsn(INVOKESTATIC, "jtaint/TaintUtil",
+                                       "appendUntainted", 
+                                       "(Ljtaint/Taint;I)Ljtaint/Taint;");
+                else {
+                    mv.visitVarInsn(ILOAD, 1);
+                    mv.visitMethodInsn(INVOKESTATIC, "jtaint/TaintUtil",
+                                       "insertUntainted", 
+                                       "(Ljtaint/Taint;II)Ljtaint/Taint;");
+                }
+
+                mv.visitVarInsn(ALOAD, 0);
                 mv.visitInsn(SWAP);
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String",
-                                   "length", "()I");
+                mv.visitFieldInsn(PUTFIELD, className, 
+                                  ByteCodeUtil.internalName("taint"), 
+                                  "Ljtaint/Taint;");
+            }
+        }.build(LockOptimizer.mayReenter(methodName, desc));
+    }
+
+    /** Append or insert a CharSequence or StringBuffer using the original
+     * method, which copies the characters of a StringBuilder or StringBuffer
+     * argument directly. The argument's taint is then copied without 
+     * converting it to a String. Equivalent to the following Java code for
+     * append, run once the lock is released:
+     *
+     * taint = TaintUtil.appendCharSequence(taint, count, cs);
+     *
+     * and for insert(offset, cs):
+     *
+     * taint = TaintUtil.insertCharSequence(taint, count, offset, cs);
+     */
+    private void buildCharSequenceWrapper(final MethodVisitor mv, 
+                                          final String methodName,
+                                          final String desc) 
+    {
+        final boolean isAppend = "append".equals(methodName);
+
+        new InstrumentationLockBuilder(mv, version, className, methodName, desc)
+        {
+            public void onUnlocked() { 
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, 
+                        ByteCodeUtil.internalName("taint"), 
+                        "Ljtaint/Taint;");
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, "count", "I");
+
+                if (isAppend) {
+                    mv.visitVarInsn(ALOAD, 1);
+                    mv.visitMethodInsn(INVOKESTATIC, "jtaint/TaintUtil",
+                              "appendCharSequence", 
+                              "(Ljtaint/Taint;ILjava/lang/Object;)Ljtaint/Taint;");
+                } else {
+                    mv.visitVarInsn(ILOAD, 1);
+                    mv.visitVarInsn(ALOAD, 2);
+                    mv.visitMethodInsn(INVOKESTATIC, "jtaint/TaintUtil",
+                              "insertCharSequence", 
+                              "(Ljtaint/Taint;IILjava/lang/Object;)Ljtaint/Taint;");
+                }
 
-                mv.visitMethodInsn(INVOKESTATIC, "jtaint/TaintUtil",
-                                   methodName, taintDesc);
                 mv.visitVarInsn(ALOAD, 0);
                 mv.visitInsn(SWAP);
                 mv.visitFieldInsn(PUTFIELD, className, 
                                   ByteCodeUtil.internalName("taint"), 
                                   "Ljtaint/Taint;");
             }
-        }.build();
+        }.build(LockOptimizer.mayReenter(methodName, desc));
     }
 
     private void buildDeleteCharAtWrapper(final MethodVisitor mv, 
@@ -507,7 +605,7 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
             public void visitMaxs(int nStack, int nLocal) {
                 mv.visitMaxs(Math.max(nStack, 3), nLocal);
             }
-        }.build();
+        }.build(LockOptimizer.mayReenter(methodName, desc));
     }
 
     private void buildReplaceWrapper(final MethodVisitor mv, 
@@ -522,48 +620,21 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
                 mv.visitFieldInsn(GETFIELD, className,  
                                   ByteCodeUtil.internalName("taint"), 
                                   "Ljtaint/Taint;");
-                             
-                /* Fixup -- TaintUtil is expecting the length of 
-                 * StringBuilder _before_ the replace occurred.  For
-                 * a call to replace(int begin, int end, String s), 
-                 * count + (end - begin) - s.length() is the old count
-                 */
-
                 mv.visitVarInsn(ALOAD, 0);
                 mv.visitFieldInsn(GETFIELD, className, "count", "I");
-                mv.visitVarInsn(ILOAD, 2);
-                mv.visitVarInsn(ILOAD, 1);
-                mv.visitInsn(ISUB);
-                mv.visitInsn(IADD);
-                mv.visitVarInsn(ALOAD, 3);
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String",
-                                   "length", "()I");
-                mv.visitInsn(ISUB);
-
-                /* Now load begin/end */
                 mv.visitVarInsn(ILOAD, 1);
                 mv.visitVarInsn(ILOAD, 2);
-
-                /* And finally string taint/length */
-
                 mv.visitVarInsn(ALOAD, 3);
-                mv.visitInsn(DUP);
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String",
-                                   ByteCodeUtil.internalName("taint"),
-                                   "()Ljtaint/Taint;");
-                mv.visitInsn(SWAP);
-                mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String",
-                                   "length", "()I");
                 mv.visitMethodInsn(INVOKESTATIC, "jtaint/TaintUtil",
-                                   "replace", 
-                                   "(Ljtaint/Taint;IIILjtaint/Taint;I)Ljtaint/Taint;");
+                                   "replaceString", 
+                         "(Ljtaint/Taint;IIILjava/lang/String;)Ljtaint/Taint;");
                 mv.visitVarInsn(ALOAD, 0);
                 mv.visitInsn(SWAP);
                 mv.visitFieldInsn(PUTFIELD, className, 
                                   ByteCodeUtil.internalName("taint"),
                                   "Ljtaint/Taint;");
             }
-        }.build();
+        }.build(LockOptimizer.mayReenter(methodName, desc));
     }
 
     private void buildSetCharAtWrapper(final MethodVisitor mv, 
@@ -594,7 +665,7 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
                 mv.visitInsn(POP);
 
             }
-        }.build();
+        }.build(LockOptimizer.mayReenter(methodName, desc));
     }
 
     private void buildGenericWrapper(final MethodVisitor mv, 
@@ -626,7 +697,7 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
                             new Object[] { "jtaint/Taint" });
                 mv.visitInsn(POP);
             }
-        }.build();
+        }.build(LockOptimizer.mayReenter(methodName, desc));
     }
 
     public MethodVisitor visitMethod(final int access, 
@@ -655,37 +726,25 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
         if (!methodList.contains(new MethodDecl(access, name, desc)))
             return mv;
 
-        if ("toString".equals(name)) {
-            replaceToString(mv);
-            return null;
-        } else if ("subSequence".equals(name)) {
-            replaceSubSequence(mv);
-            return null;
-        } else if ("substring".equals(name)) {
-            if ("(I)Ljava/lang/String;".equals(desc)) 
-                replaceSubstringI(mv);
+        if (isReplaced(name, desc)) {
+            if ("toString".equals(name)) 
+                replaceToString(mv);
+            else if ("subSequence".equals(name)) 
+                replaceSubSequence(mv);
+            else if ("substring".equals(name)) {
+                if ("(I)Ljava/lang/String;".equals(desc)) 
+                    replaceSubstringI(mv);
+                else
+                    replaceSubstringII(mv);
+            } else if ("appendCodePoint".equals(name)) 
+                replaceAppendCodePoint(mv);
+            else if (desc.endsWith("Ljava/lang/CharSequence;II)Ljava/lang/@builder@;"))
+                replaceCharSequenceII(mv, name, desc, offset);
             else
-                replaceSubstringII(mv);
-            return null;
-        } else if ("appendCodePoint".equals(name)) {
-            replaceAppendCodePoint(mv);
-            return null;
-        } else if (("append".equals(name) && 
-             "(Ljava/lang/CharSequence;II)Ljava/lang/@builder@;".equals(desc))
-                   || ("insert".equals(name) && 
-             "(ILjava/lang/CharSequence;II)Ljava/lang/@builder@;".equals(desc)))
-        {
-            replaceCharSequenceII(mv, name, desc, offset);
-            return null;
-        } else if (("append".equals(name) &&
-                    !"(Ljava/lang/String;)Ljava/lang/@builder@;".equals(desc))
-                   || ("insert".equals(name) && 
-                    !"(ILjava/lang/String;)Ljava/lang/@builder@;".equals(desc)))
-        {
-            /* Convert the append or insert arguments to String, and
-             * invoke append(String) or insert(offset, String)
-             */
-            replaceWithStringConverter(mv, name, desc, offset);
+                /* Convert the append or insert arguments to String, and
+                 * invoke append(String) or insert(offset, String)
+                 */
+                replaceWithStringConverter(mv, name, desc, offset);
             return null;
         }
 
@@ -694,8 +753,16 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
         if ("delete".equals(name) || "reverse".equals(name) || 
                 "setLength".equals(name)) 
             buildGenericWrapper(mv, name, desc);
-        else if ("append".equals(name) || "insert".equals(name)) 
-            buildStringWrapper(mv, name, desc); 
+        else if ("append".equals(name) || "insert".equals(name)) {
+            String arg = valueArgument(desc, offset);
+
+            if ("java/lang/String".equals(arg))
+                buildStringWrapper(mv, name, desc); 
+            else if (arg != null)
+                buildCharSequenceWrapper(mv, name, desc);
+            else
+                buildUntaintedWrapper(mv, name, desc);
+        }
         else if ("deleteCharAt".equals(name)) 
             buildDeleteCharAtWrapper(mv, name, desc);
         else if ("replace".equals(name)) 
@@ -703,18 +770,323 @@ public class @builder@Adapter extends StubAdapter implements Opcodes
         else /* "setCharAt".equals(name) */ 
             buildSetCharAtWrapper(mv, name, desc);
 
-        return super.visitMethod(ByteCodeUtil.inheritAccessFlags(access) 
+        MethodVisitor inner = super.visitMethod(
+                                 ByteCodeUtil.inheritAccessFlags(access) 
                                         + ACC_PRIVATE,
                                  ByteCodeUtil.internalName(name), desc, 
                                  signature, exceptions);
+        BitSet selfCalls = LockOptimizer.selfCalls(access, name, desc);
+
+        if (selfCalls == null || inner == null)
+            return inner;
+        return new SelfCallAdapter(inner, selfCalls);
+    }
+
+    /** Methods on methodList that are replaced by a new implementation rather
+     * than wrapped. Replaced methods have no original version.
+     */
+    private static boolean isReplaced(String name, String desc) {
+        int offset = "append".equals(name) ? 0 : 1;
+
+        if ("toString".equals(name) || "subSequence".equals(name) 
+                || "substring".equals(name) || "appendCodePoint".equals(name))
+            return true;
+        if (!"append".equals(name) && !"insert".equals(name))
+            return false;
+        return desc.endsWith("Ljava/lang/CharSequence;II)Ljava/lang/@builder@;")
+               || "java/lang/Object".equals(valueArgument(desc, offset));
+    }
+
+    private static boolean isWrapped(int access, String name, String desc) {
+        return methodList.contains(new MethodDecl(access, name, desc)) 
+               && !isReplaced(name, desc);
+    }
+
+    /** Rewrite the self-calls found by LockOptimizer in the original version
+     * of an instrumented method, so that they invoke the original version of
+     * the callee.
+     */
+    private static class SelfCallAdapter extends MethodAdapter 
+    {
+        private final BitSet selfCalls;
+        private int call;
+
+        public SelfCallAdapter(MethodVisitor mv, BitSet selfCalls) {
+            super(mv);
+            this.selfCalls = selfCalls;
+        }
+
+        public void visitMethodInsn(int opcode, String owner, String name,
+                                    String desc) 
+        {
+            if (selfCalls.get(call++))
+                name = ByteCodeUtil.internalName(name);
+            mv.visitMethodInsn(opcode, owner, name, desc);
+        }
+    }
+
+    /** Create a new method that returns a private copy of the taint of this
+     * StringBuilder/StringBuffer, used when it is appended to another one.
+     * StringBuffer's copy is synchronized like its other methods. Equivalent
+     * to the following Java code:
+     *
+     * public Taint taint() {
+     *     if (taint == null) {
+     *         return null;
+     *     } else {
+     *         return (Taint) taint.clone();
+     *     }
+     * }
+     */
+    private void addTaintMethod(ClassVisitor cv) {
+        int access = ACC_PUBLIC;
+
+        if ("java/lang/StringBuffer".equals(className))
+            access += ACC_SYNCHRONIZED;
+
+        MethodVisitor mv = cv.visitMethod(access,
+                                          ByteCodeUtil.internalName("taint"),
+                                          "()Ljtaint/Taint;", null, null);
+        mv.visitCode();
+
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, 
+                          ByteCodeUtil.internalName("taint"), "Ljtaint/Taint;");
+        mv.visitInsn(DUP);
+
+        Label l = new Label();
+        mv.visitJumpInsn(IFNONNULL, l);
+        mv.visitInsn(ARETURN);
+
+        mv.visitLabel(l);
+        if (version == V1_6)
+            mv.visitFrame(F_SAME1, 0, null, 1, new Object[] { "jtaint/Taint" });
+
+        mv.visitMethodInsn(INVOKEVIRTUAL, "jtaint/Taint", "clone",
+                           "()Ljava/lang/Object;");
+        mv.visitTypeInsn(CHECKCAST, "jtaint/Taint");
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(2, 1);
+        mv.visitEnd();
     }
 
     public void onEndBuildStubs() {
         cv.visitField(ACC_PRIVATE + ACC_TRANSIENT,
                       ByteCodeUtil.internalName("taint"), 
                       "Ljtaint/Taint;", null, null).visitEnd();
-       
-        InstrumentationLockBuilder.visitEnd(cv, className);
+        addTaintMethod(cv);
+    }
+
+    /** Analysis pass over the builder class and its superclasses, performed 
+     * before the class is instrumented. 
+     *
+     * Most instrumented methods never invoke another instrumented method on
+     * the same object, and so do not need to maintain the lock described in
+     * InstrumentationLockBuilder. We build the call graph of the original
+     * version of each instrumented method, following calls into this class 
+     * and its superclasses. A virtual call to an instrumented method on this
+     * object from the original version of another instrumented method is a
+     * self-call: it is rewritten to invoke the original version of the callee
+     * directly, as the caller's instrumentation already accounts for it. Any
+     * other call to an instrumented method re-enters, as does any call that 
+     * leaves the class hierarchy, except calls to a few JDK classes that
+     * never call back into a builder. Instrumented methods that cannot
+     * re-enter are instrumented without the lock.
+     */
+    public static class LockOptimizer extends ClassNode 
+    {
+        private static final Set leafSet = new HashSet();
+        private static final Map selfCallMap = new HashMap();
+        private static final Set safeStaticOwners = new HashSet();
+
+        static {
+            safeStaticOwners.add("java/lang/Character");
+            safeStaticOwners.add("java/lang/Integer");
+            safeStaticOwners.add("java/lang/Long");
+            safeStaticOwners.add("java/lang/Math");
+            safeStaticOwners.add("java/lang/System");
+            safeStaticOwners.add("java/util/Arrays");
+        }
+
+        /* This class first, followed by its superclasses */
+        private final List hierarchy = new ArrayList();
+
+        public static boolean mayReenter(String name, String desc) {
+            return !leafSet.contains(new MethodDecl(ACC_PUBLIC, name, desc));
+        }
+
+        public static BitSet selfCalls(int access, String name, String desc) {
+            return (BitSet) selfCallMap.get(new MethodDecl(access, name, desc));
+        }
+
+        public void visitEnd() {
+            hierarchy.add(this);
+
+            try {
+                for (String s = superName; s != null 
+                        && !"java/lang/Object".equals(s); ) {
+                    ClassNode cn = new ClassNode();
+                    new ClassReader(s).accept(cn, ClassReader.SKIP_DEBUG 
+                                                  + ClassReader.SKIP_FRAMES);
+                    hierarchy.add(cn);
+                    s = cn.superName;
+                }
+            } catch (IOException e) {
+                /* Assume that every instrumented method may re-enter */
+                return;
+            }
+
+            for (Iterator i = methods.iterator(); i.hasNext(); ) {
+                MethodNode m = (MethodNode) i.next();
+                if (isWrapped(m.access, m.name, m.desc))
+                    findSelfCalls(m);
+            }
+
+            for (Iterator i = methodList.iterator(); i.hasNext(); ) {
+                MethodDecl m = (MethodDecl) i.next();
+                if (isWrapped(m.access(), m.name(), m.type()) 
+                        && !reenters(0, m.name(), m.type(), new HashSet()))
+                    leafSet.add(m);
+            }
+        }
+
+        private void findSelfCalls(MethodNode m) {
+            Frame[] frames;
+
+            try {
+                frames = new Analyzer(new SourceInterpreter()).analyze(name, m);
+            } catch (AnalyzerException e) {
+                return;
+            }
+
+            BitSet calls = new BitSet();
+            int call = 0;
+
+            for (int i = 0; i < m.instructions.size(); i++) {
+                AbstractInsnNode insn = m.instructions.get(i);
+
+                if (insn.getOpcode() == ASTORE && ((VarInsnNode) insn).var == 0)
+                    return;
+                if (!(insn instanceof MethodInsnNode))
+                    continue;
+
+                MethodInsnNode mi = (MethodInsnNode) insn;
+                if (mi.getOpcode() == INVOKEVIRTUAL && name.equals(mi.owner) 
+                        && isWrapped(ACC_PUBLIC, mi.name, mi.desc)
+                        && isThis(frames[i], mi.desc))
+                    calls.set(call);
+                call++;
+            }
+
+            if (!calls.isEmpty())
+                selfCallMap.put(new MethodDecl(m.access, m.name, m.desc), 
+                                calls);
+        }
+
+        /* Test whether the receiver of a method invocation is always the 
+         * value of this loaded from local 0. 
+         */
+        private static boolean isThis(Frame f, String desc) {
+            if (f == null)
+                return false;
+
+            int r = f.getStackSize() - Type.getArgumentTypes(desc).length - 1;
+            Set insns = ((SourceValue) f.getStack(r)).insns;
+
+            if (insns.isEmpty())
+                return false;
+
+            for (Iterator i = insns.iterator(); i.hasNext(); ) {
+                AbstractInsnNode insn = (AbstractInsnNode) i.next();
+                if (insn.getOpcode() != ALOAD || ((VarInsnNode) insn).var != 0)
+                    return false;
+            }
+            return true;
+        }
+
+        private int indexOf(String className) {
+            for (int i = 0; i < hierarchy.size(); i++)
+                if (((ClassNode) hierarchy.get(i)).name.equals(className))
+                    return i;
+            return -1;
+        }
+
+        private MethodNode findMethod(int k, String name, String desc) {
+            List l = ((ClassNode) hierarchy.get(k)).methods;
+
+            for (Iterator i = l.iterator(); i.hasNext(); ) {
+                MethodNode m = (MethodNode) i.next();
+                if (m.name.equals(name) && m.desc.equals(desc))
+                    return m;
+            }
+            return null;
+        }
+
+        /* Test whether the method name, as resolved from hierarchy[k], may
+         * invoke an instrumented method on this object. 
+         */
+        private boolean reenters(int k, String name, String desc, Set visited) {
+            MethodNode m = null;
+            int j;
+
+            for (j = k; j < hierarchy.size(); j++) 
+                if ((m = findMethod(j, name, desc)) != null)
+                    break;
+
+            if (m == null || m.instructions.size() == 0)
+                return true;
+            if (!visited.add(m))
+                return false;
+
+            BitSet calls = j == 0 ? selfCalls(m.access, m.name, m.desc) : null;
+            int call = 0;
+
+            for (int i = 0; i < m.instructions.size(); i++) {
+                AbstractInsnNode insn = m.instructions.get(i);
+                if (!(insn instanceof MethodInsnNode))
+                    continue;
+
+                MethodInsnNode mi = (MethodInsnNode) insn;
+                int op = mi.getOpcode(),
+                    o  = indexOf(mi.owner);
+
+                if (calls != null && calls.get(call++)) {
+                    if (reenters(0, mi.name, mi.desc, visited))
+                        return true;
+                } else if (o >= 0) {
+                    if (op == INVOKEVIRTUAL && methodList.contains(
+                                new MethodDecl(ACC_PUBLIC, mi.name, mi.desc)))
+                        return true;
+                    if (reenters(op == INVOKEVIRTUAL ? 0 : o, mi.name, mi.desc,
+                                 visited))
+                        return true;
+                } else if (!isSafeCall(mi)) 
+                    return true;
+            }
+            return false;
+        }
+
+        private static boolean isSafeCall(MethodInsnNode mi) {
+            if ("<init>".equals(mi.name))
+                return true;
+            if ("java/lang/String".equals(mi.owner))
+                return mi.getOpcode() != INVOKESTATIC || 
+                    !"(Ljava/lang/Object;)Ljava/lang/String;".equals(mi.desc);
+            return mi.getOpcode() == INVOKESTATIC 
+                   && safeStaticOwners.contains(mi.owner);
+        }
+
+        public static AnalysisBuilder builder(){ return Builder.getInstance(); }
+
+        private static class Builder implements AnalysisBuilder {
+            private static final Builder b = new Builder();
+
+            public static AnalysisBuilder getInstance() { return b; }
+
+            public ClassVisitor build() {
+                return new LockOptimizer();
+            }
+        }
     }
 
     public static InstrumentationBuilder builder() { 
@@ -17,6 +17,7 @@ package jtaint;
 
 import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.MethodVisitor;
 
@@ -37,11 +38,15 @@ import org.objectweb.asm.MethodVisitor;
  *
  * For more information see:
  * http://developers.sun.com/learning/javaoneonline/2007/pdf/TS-2171.pdf
+ *
+ * Since StringMaker sees every piece of the concatenation at once, taint is
+ * propagated in a single step in toString(), rather than append by append.
  */
 
 public class StringMakerAdapter extends ClassAdapter implements Opcodes
 {
     private String className;
+    private int version;
 
     public StringMakerAdapter(ClassVisitor cv) { super(cv); }
 
@@ -50,28 +55,105 @@ public class StringMakerAdapter extends ClassAdapter implements Opcodes
             String[] interfaces) 
     {
         this.className = name;
+        this.version = version;
         cv.visit(version, access, name, signature, superName, interfaces);
     }
     
+    /** Nearly all concatenations are untainted, so the wrapper scans the
+     * pieces inline and only calls into jtaint if one of them is tainted.
+     * The helper then builds the result taint at its final length in one
+     * pass. Anything unexpected (a null piece, or an exception) is also 
+     * left to the helper, which logs it and returns the result. Equivalent
+     * to the following Java code:
+     *
+     * public String toString() {
+     *     String[] s = strings;
+     *     int n = size;
+     *     String result = realToString();
+     *     try {
+     *         for (int i = 0; i < n; i++) {
+     *             String p = s[i];
+     *             if (p == null || p.isTainted())
+     *                 return StringUtil.concat(s, n, result);
+     *         }
+     *     } catch (Throwable th) {
+     *         return StringUtil.concat(s, n, result);
+     *     }
+     *     return result;
+     * }
+     */
     private void buildToStringWrapper(MethodVisitor mv)
     {
+        Label loop = new Label(),
+              done = new Label(),
+              handler = new Label(),
+              slow = new Label();
+
         mv.visitCode();
+        mv.visitTryCatchBlock(loop, done, handler, "java/lang/Throwable");
 
         mv.visitVarInsn(ALOAD, 0);
         mv.visitFieldInsn(GETFIELD, className, "strings",
                           "[Ljava/lang/String;");
+        mv.visitVarInsn(ASTORE, 1);
 
         mv.visitVarInsn(ALOAD, 0);
         mv.visitFieldInsn(GETFIELD, className, "size", "I");
+        mv.visitVarInsn(ISTORE, 2);
 
         mv.visitVarInsn(ALOAD, 0);
         mv.visitMethodInsn(INVOKEVIRTUAL, className,
                            ByteCodeUtil.internalName("toString"),
                            "()Ljava/lang/String;");
+        mv.visitVarInsn(ASTORE, 3);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, 4);
+
+        mv.visitLabel(loop);
+        if (version == V1_6)
+            mv.visitFrame(F_FULL, 5, 
+                          new Object[] { className, "[Ljava/lang/String;",
+                                         INTEGER, "java/lang/String", 
+                                         INTEGER }, 0, null);
+        mv.visitVarInsn(ILOAD, 4);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitJumpInsn(IF_ICMPGE, done);
+
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitVarInsn(ILOAD, 4);
+        mv.visitInsn(AALOAD);
+        mv.visitVarInsn(ASTORE, 5);
+        mv.visitVarInsn(ALOAD, 5);
+        mv.visitJumpInsn(IFNULL, slow);
+        mv.visitVarInsn(ALOAD, 5);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String",
+                           ByteCodeUtil.internalName("isTainted"), "()Z");
+        mv.visitJumpInsn(IFNE, slow);
+        mv.visitIincInsn(4, 1);
+        mv.visitJumpInsn(GOTO, loop);
+
+        mv.visitLabel(done);
+        if (version == V1_6)
+            mv.visitFrame(F_SAME, 0, null, 0, null);
+        mv.visitVarInsn(ALOAD, 3);
+        mv.visitInsn(ARETURN);
+
+        mv.visitLabel(handler);
+        if (version == V1_6)
+            mv.visitFrame(F_SAME1, 0, null, 1, 
+                          new Object[] { "java/lang/Throwable" });
+        mv.visitInsn(POP);
+
+        mv.visitLabel(slow);
+        if (version == V1_6)
+            mv.visitFrame(F_SAME, 0, null, 0, null);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitVarInsn(ALOAD, 3);
         mv.visitMethodInsn(INVOKESTATIC, "jtaint/StringUtil",
                            "concat", "([Ljava/lang/String;ILjava/lang/String;)Ljava/lang/String;");
         mv.visitInsn(ARETURN);
-        mv.visitMaxs(3, 1); 
+        mv.visitMaxs(3, 6); 
         mv.visitEnd();
     }
 
@@ -21,7 +21,8 @@ import org.objectweb.asm.Opcodes;
 
 /** Instrument java.lang.Thread to store information about the current servlet
  * request. Allows other class to get/set this information during servlet 
- * processing.
+ * processing. Each thread also records the owner of its instrumentation 
+ * lock.
  */
 
 public class ThreadAdapter extends ClassAdapter implements Opcodes
@@ -59,6 +60,12 @@ public class ThreadAdapter extends ClassAdapter implements Opcodes
                  "Ljava/lang/String;");
         addField("requestParams", "getRequestParams", "setRequestParams",
                 "Ljava/util/Map;");
+
+        /* Owner of this thread's instrumentation lock, see 
+         * InstrumentationLockBuilder 
+         */
+        addField("lockOwner", "getLockOwner", "setLockOwner", 
+                 "Ljava/lang/Object;");
         cv.visitEnd();
     }
 
@@ -16,7 +16,6 @@
 package jtaint;
 
 import org.objectweb.asm.ClassAdapter;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.MethodVisitor;
@@ -33,48 +32,65 @@ import org.objectweb.asm.Type;
  * operation _twice_ - once when deleteCharAt() is called, and once when
  * delete() is called in the body of deleteCharAt().
  *
- * To avoid this situation we increment a simple per-object counter when
- * entering an instrumented method, and then invoke the original method. When 
- * the original method finishes, we decrement the counter. If the counter is 
- * now zero, then and only then do we execute the instrumentation code 
- * (e.g., updating taint in the case of StringBuffer). 
+ * To avoid this situation each thread records the object that owns its
+ * instrumentation lock: the object whose outermost instrumented method is 
+ * currently executing. When entering an instrumented method, if the current
+ * thread's lock owner is this object, then an enclosing instrumented method 
+ * will perform the instrumentation and we only invoke the original method.
+ * Otherwise we make this object the lock owner, invoke the original method,
+ * restore the previous owner and then execute the instrumentation code 
+ * (e.g., updating taint in the case of StringBuffer). Restoring the previous
+ * owner keeps instrumented methods of other objects invoked by the original
+ * method (e.g. a PrintWriter writing to an OutputStream) fully instrumented.
  *
- * Effectively our counter acts as a simple recursive lock. However, its
+ * Effectively this acts as a simple recursive lock. However, its
  * purpose is to prevent instrumentation code from being executed 
  * twice (or more) for a given instrumented method -- this 'lock' is not
  * intended to provide any form of synchronization between multiple threads.
  *
- * As a final caveat, we often instrument a hierarchy of classes which
- * together implement an interface, such as ServletOutputStream. Each
- * instrumented class will have its own lock field, which is a recipe for
- * disaster (i.e. if class A has a lock and its superclass B has a lock, then
- * A may think the object is locked when B does not or vice-versa because there
- * are two different lock fields, one used by methods defined in A, and one
- * by methods defined in B).
- *
- * To prevent this from occuring, we access lock fields solely invoking 
- * getter/setter methods via the invokevirtual instruction. Any instrumented
- * class will override the getter/setter methods in its superclasses, thus
- * ensuring that all superclasses use the same lock.
+ * Keeping the lock owner in java.lang.Thread (see ThreadAdapter) rather than
+ * in a counter field of each instrumented object means that instrumented
+ * objects, such as the very many StringBuilders created by a JVM, carry no 
+ * lock state. It also allows a hierarchy of instrumented classes, such as
+ * the implementations of ServletOutputStream, to share a lock without any
+ * coordination: the lock is identified by the object itself.
  *
  * Here is a sample instrumentation of StringBuffer.deleteCharAt(i)
  *   public StringBuffer deleteCharAt(int i) {
  *     onMethodEnter();
- *     incLock();
- *     try {
+ *     Thread t = Thread.currentThread();
+ *     Object owner = t.getLockOwner();
+ *     if (owner == this) {
  *         realDeleteCharAt(i);
- *         if (decAndTestLock() == 0);
- *             onUnlocked();
  *         return this;
+ *     }
+ *     t.setLockOwner(this);
+ *     try {
+ *         realDeleteCharAt(i);
  *     } catch (Throwable th) {
- *         decAndTestLock();
+ *         t.setLockOwner(owner);
  *         throw th;
  *     }
+ *     t.setLockOwner(owner);
+ *     onUnlocked();
+ *     return this;
  *   }
  *
  * If an exception occurs, it is assumed that no data was updated and 
- * thus no instrumentation code should be executed, so we only decrement the
- * lock accordingly.
+ * thus no instrumentation code should be executed, so we only restore the
+ * lock owner accordingly.
+ *
+ * Maintaining the lock is wasted effort for methods that never invoke another
+ * instrumented method on the same object. When an analysis pass has shown 
+ * this (see StringBuilderAdapter.LockOptimizer), build(false) omits the lock
+ * updates and the exception handler:
+ *   public StringBuffer deleteCharAt(int i) {
+ *     onMethodEnter();
+ *     realDeleteCharAt(i);
+ *     if (Thread.currentThread().getLockOwner() != this)
+ *         onUnlocked();
+ *     return this;
+ *   }
  */
 
 public abstract class InstrumentationLockBuilder implements Opcodes
@@ -94,22 +110,33 @@ public abstract class InstrumentationLockBuilder implements Opcodes
         this.methodDesc = methodDesc;
     }
 
-    public final void build() {
-        mv.visitCode();
-        boolean isVoid = Type.VOID_TYPE.equals(Type.getReturnType(methodDesc));
+    public final void build() { build(true); }
 
+    /** Build the instrumented method. If mayReenter is false, the original
+     * method must not invoke any instrumented method on this object.
+     */
+    public final void build(boolean mayReenter) {
+        mv.visitCode();
         onMethodEnter();
 
-        /* Increment lock */
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitMethodInsn(INVOKEVIRTUAL, className,
-                           ByteCodeUtil.internalName("incLock"), "()V");
+        int l = mayReenter ? buildLocked() : buildDirect();
 
-        /* Now wrap the real method invocation */
-        Label start = new Label(), end = new Label(), handler = new Label();
-        mv.visitTryCatchBlock(start, end, handler, null);
-        mv.visitLabel(start);
+        /* We want to call the appropriate TaintUtil function with 
+         * with the arguments supplied to the instrumented method.
+         * However, any arugments that were originally String or 
+         * StringBuilder are transformed into Taint arguments with
+         * an additional 'length' argument, so at worst we require twice 
+         * the number of original arguments. The locked version stores the
+         * current thread and lock owner after the arguments.
+         */
+        mv.visitMaxs(Math.max(2 * l + 1, 5), l + 2);
+        mv.visitEnd();
+    }
 
+    /* Invoke the original method and discard its result. Returns the number 
+     * of local variable slots used by the arguments.
+     */
+    private int invokeOriginal() {
         mv.visitVarInsn(ALOAD, 0);
         int l = 1;
         Type[] t = Type.getArgumentTypes(methodDesc);
@@ -120,120 +147,123 @@ public abstract class InstrumentationLockBuilder implements Opcodes
         mv.visitMethodInsn(INVOKEVIRTUAL, className, 
                 ByteCodeUtil.internalName(methodName), methodDesc);
 
-        if (!isVoid)  
+        if (!Type.VOID_TYPE.equals(Type.getReturnType(methodDesc)))
             mv.visitInsn(POP);
+        return l;
+    }
 
-        /* Now decrement lock, and see if the result is zero. If so, 
-         * we're now unlocked and can update the taint information
-         */
+    /* XXX TODO All classes that use InstrumentationLockBuilder currently
+     * return either void or the current class. We do not handle the
+     * general case correctly at the moment.
+     */
+    private void returnThis() {
+        if (!Type.VOID_TYPE.equals(Type.getReturnType(methodDesc))) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitInsn(ARETURN);
+        } else {
+            mv.visitInsn(RETURN);
+        }
+    }
+
+    private void getLockOwner() {
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Thread",
+                           ByteCodeUtil.internalName("getLockOwner"),
+                           "()Ljava/lang/Object;");
+    }
+
+    private void setLockOwner() {
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Thread",
+                           ByteCodeUtil.internalName("setLockOwner"),
+                           "(Ljava/lang/Object;)V");
+    }
 
-        mv.visitVarInsn(ALOAD, 0); 
-        mv.visitMethodInsn(INVOKEVIRTUAL, className,
-                ByteCodeUtil.internalName("decAndTestLock"), 
-                "()I");
+    private int buildLocked() {
+        int l = 1;
+        Type[] t = Type.getArgumentTypes(methodDesc);
+
+        for (int i = 0; i < t.length; i++) 
+            l += t[i].getSize();
+
+        final int thread = l, owner = l + 1;
+
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Thread", "currentThread",
+                           "()Ljava/lang/Thread;");
+        mv.visitInsn(DUP);
+        mv.visitVarInsn(ASTORE, thread);
+        getLockOwner();
+        mv.visitInsn(DUP);
+        mv.visitVarInsn(ASTORE, owner);
 
+        /* If we already own the lock, an enclosing instrumented method of
+         * this object performs the instrumentation 
+         */
         Label l0 = new Label();
-        mv.visitJumpInsn(IFNE, l0);
-        onUnlocked();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitJumpInsn(IF_ACMPNE, l0);
+        invokeOriginal();
+        returnThis();
 
         mv.visitLabel(l0);
         if (version == V1_6)
-            mv.visitFrame(F_SAME, 0, null, 0, null);
+            mv.visitFrame(F_APPEND, 2, 
+                    new Object[] { "java/lang/Thread", "java/lang/Object" }, 
+                    0, null);
 
-        /* XXX TODO All classes that use InstrumentationLockBuilder currently
-         * return either void or the current class. We do not handle the
-         * general case correctly at the moment.
-         */
-        if (!isVoid) {
-            mv.visitVarInsn(ALOAD, 0);
-            mv.visitInsn(ARETURN);
-        } else {
-            mv.visitInsn(RETURN);
-        }
+        mv.visitVarInsn(ALOAD, thread);
+        mv.visitVarInsn(ALOAD, 0);
+        setLockOwner();
 
-        /* Otherwise an exception occurred, decrement lock and re-throw */
+        /* Now wrap the real method invocation */
+        Label start = new Label(), end = new Label(), handler = new Label();
+        mv.visitTryCatchBlock(start, end, handler, null);
+        mv.visitLabel(start);
+        invokeOriginal();
         mv.visitLabel(end);
-        mv.visitLabel(handler);
 
+        /* Release the lock, and update the taint information */
+        mv.visitVarInsn(ALOAD, thread);
+        mv.visitVarInsn(ALOAD, owner);
+        setLockOwner();
+        onUnlocked();
+        returnThis();
+
+        /* Otherwise an exception occurred, release the lock and re-throw */
+        mv.visitLabel(handler);
         if (version == V1_6)
             mv.visitFrame(F_SAME1, 0, null, 1, 
                     new Object[] { "java/lang/Throwable" });
 
-        mv.visitVarInsn(ALOAD, 0); 
-        mv.visitMethodInsn(INVOKEVIRTUAL, className, 
-                ByteCodeUtil.internalName("decAndTestLock"),
-                "()I");
-        mv.visitInsn(POP);
+        mv.visitVarInsn(ALOAD, thread);
+        mv.visitVarInsn(ALOAD, owner);
+        setLockOwner();
         mv.visitInsn(ATHROW);
-
-        /* We want to call the appropriate TaintUtil function with 
-         * with the arguments supplied to the instrumented method.
-         * However, any arugments that were originally String or 
-         * StringBuilder are transformed into Taint arguments with
-         * an additional 'length' argument, so at worst we require twice 
-         * the number of original arguments
-         */
-        mv.visitMaxs(Math.max(2 * l + 1, 5), l);
-        mv.visitEnd();
+        return l;
     }
 
-    protected void onMethodEnter() { }
-
-    protected abstract void onUnlocked(); 
-
-    private static final void buildIncLock(ClassVisitor cv, String className) {
-        MethodVisitor mv;
-        
-        mv = cv.visitMethod(ACC_PUBLIC, ByteCodeUtil.internalName("incLock"),
-                            "()V", null, null);
-        mv.visitCode();
+    private int buildDirect() {
+        int l = invokeOriginal();
 
+        /* The original method cannot re-enter, but it may itself have been 
+         * invoked by the original version of a locked method. In that case
+         * the enclosing method updates the taint information.
+         */
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Thread", "currentThread",
+                           "()Ljava/lang/Thread;");
+        getLockOwner();
         mv.visitVarInsn(ALOAD, 0);
-        mv.visitInsn(DUP);
-        mv.visitFieldInsn(GETFIELD, className,
-                          ByteCodeUtil.internalName("lock"), "I");
-        mv.visitInsn(ICONST_1);
-        mv.visitInsn(IADD);
-        mv.visitFieldInsn(PUTFIELD, className, 
-                          ByteCodeUtil.internalName("lock"), "I");
-        mv.visitInsn(RETURN);
-        mv.visitMaxs(3, 1);
-
-        mv.visitEnd();
-    }
-
-    private static final void buildDecAndTestLock(ClassVisitor cv, 
-                                                  String className) 
-    {
-        MethodVisitor mv;
-        
-        mv = cv.visitMethod(ACC_PUBLIC, 
-                            ByteCodeUtil.internalName("decAndTestLock"),
-                            "()I", null, null);
-        mv.visitCode();
 
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitInsn(DUP);
-        mv.visitFieldInsn(GETFIELD, className,
-                          ByteCodeUtil.internalName("lock"), "I");
-        mv.visitInsn(ICONST_1);
-        mv.visitInsn(ISUB);
-        mv.visitInsn(DUP_X1);
-        mv.visitFieldInsn(PUTFIELD, className, 
-                          ByteCodeUtil.internalName("lock"), "I");
-        mv.visitInsn(IRETURN);
-        mv.visitMaxs(3, 1);
+        Label l0 = new Label();
+        mv.visitJumpInsn(IF_ACMPEQ, l0);
+        onUnlocked();
 
-        mv.visitEnd();
+        mv.visitLabel(l0);
+        if (version == V1_6)
+            mv.visitFrame(F_SAME, 0, null, 0, null);
+        returnThis();
+        return l;
     }
 
+    protected void onMethodEnter() { }
 
-    public static final void visitEnd(ClassVisitor cv, String className) {
-        cv.visitField(ACC_PRIVATE + ACC_TRANSIENT,
-                      ByteCodeUtil.internalName("lock"), 
-                      "I", null, null).visitEnd();
-
-        buildIncLock(cv, className);
-        buildDecAndTestLock(cv, className);
-    }
+    protected abstract void onUnlocked(); 
 }
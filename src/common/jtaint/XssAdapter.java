@@ -147,7 +147,7 @@ public class XssAdapter extends StubAdapter implements Opcodes
                     if (version == V1_6) {
                         mv.visitFrame(F_SAME, 0, null, 0 , null);
                         /* We can't end on a visitFrame because 
-                         * InstrumentationLockAdapter performs a visitFrame 
+                         * InstrumentationLockBuilder may perform a visitFrame
                          * after this method completes. Two consecutive 
                          * visitFrames cause the Java 6 type checker to barf, 
                          * so just pad with a single NOP.
@@ -182,8 +182,6 @@ public class XssAdapter extends StubAdapter implements Opcodes
     }
 
     public void onEndBuildStubs() {
-        InstrumentationLockBuilder.visitEnd(cv, className);
-
         cv.visitField(ACC_PRIVATE + ACC_TRANSIENT, 
                       ByteCodeUtil.internalName("htmlValidator"), 
                       "Ljtaint/HtmlValidator;", null, null).visitEnd();
@@ -114,12 +114,14 @@ scriptdir=`pwd -P`
 echo "Welcome to JavaTaint @version@"
 base=
 install=
+agent=
 
 while [ $# -gt 0 ]; do
     case "$1" in 
         -b) base="$2"; shift;;
         -i) install="$2"; shift;;
-         *) echo "Usage: $0 [-b <java home directory>] [-i <javataint install directory>]"; exit 1;;
+        -a) agent=1;;
+         *) echo "Usage: $0 [-a] [-b <java home directory>] [-i <javataint install directory>]"; exit 1;;
     esac
     shift;
 done
@@ -158,6 +160,30 @@ if [ -z "$install" ]; then
     install="/usr/local/jtaint"
 fi
 
+#Agent installations leave the JRE untouched, and only provide a bootlib for
+#use with -Xbootclasspath/p and -javaagent
+if [ -n "${agent}" ]; then
+    mkdir -p "${install}" || { echo "Could not create ${install}" >&2 ; \
+                               exit 1; }
+
+    echo "Installing JavaTaint agent in ${install}"
+    "${base}/${JAVA_BIN}" -jar "${scriptdir}/jt-bootstrap.jar" -a \
+        -i "${install}" \
+        -r14 "${scriptdir}/jt-rt1.4.jar" -r15 "${scriptdir}/jt-rt1.5.jar" \
+        -j "${install}/jt-bootlib.jar" || exit 1
+
+    cp "${scriptdir}/jt.dtd" "${install}"
+    sed -e "s|@install@|${install}|g" <  "${scriptdir}/jt-config.xml.example" \
+            > "${install}/jt-config.xml.example"
+    sed -e "s|@install@|${install}|g" <  "${scriptdir}/log4j.properties.example" \
+            > "${install}/log4j.properties.example"
+
+    echo "JavaTaint installation complete. Run ${base}/${JAVA_BIN} with:"
+    echo "  -Xbootclasspath/p:${install}/jt-bootlib.jar" \
+         "-javaagent:${install}/jt-bootlib.jar"
+    exit 0
+fi
+
 mkdir -p "${install}/jt_java" || { echo "Could not create ${install}" >&2 ; \
                                    exit 1; }
 
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+/* java.lang.instrument entry point, allowing JavaTaint to be used with an
+ * unmodified JRE installation rather than a copy with an instrumented rt.jar.
+ *
+ * The core classes we instrument (String, StringBuffer, StringBuilder,
+ * Thread, File, ...) gain new fields and methods, and JVMTI retransformation 
+ * may not change the shape of a class. These classes must still be supplied 
+ * by a jt-bootlib.jar, built with jt-bootstrap -a, prepended to the 
+ * bootstrap classpath. The same jar carries the Premain-Class attribute:
+ *
+ *   java -Xbootclasspath/p:jt-bootlib.jar -javaagent:jt-bootlib.jar ...
+ *
+ * An agent bootlib does not wrap ClassLoader.defineClass. Instead, 
+ * the ClassFileTransformer registered here performs the dynamic 
+ * instrumentation of InstrumentationUtils on every class defined by a 
+ * (non-bootstrap) classloader. ClassLoader is still instrumented to export
+ * findLoadedClass, which is required by ClassUtil and HttpUtil.
+ */
+
+//[ifJava5+]
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Method;
+import java.security.ProtectionDomain;
+
+public final class Agent implements ClassFileTransformer
+{
+    private static boolean isBootstrapped() {
+        if (Agent.class.getClassLoader() != null)
+            return false;
+
+        try {
+            String.class.getDeclaredField("@internal@taint");
+            return true;
+        } catch (NoSuchFieldException e) {
+            return false;
+        }
+    }
+
+    private static boolean isDefineClassWrapped() {
+        Method[] m = ClassLoader.class.getDeclaredMethods();
+        for (int i = 0; i < m.length; i++)
+            if ("@internal@defineClass".equals(m[i].getName()))
+                return true;
+        return false;
+    }
+
+    public static void premain(String args, Instrumentation inst) {
+        try {
+            if (!isBootstrapped()) {
+                Log.error("JavaTaint agent requires jt-bootlib.jar on the "
+                          + "bootstrap classpath (-Xbootclasspath/p), "
+                          + "agent disabled");
+                return;
+            }
+
+            // A bootlib built without -a already instruments every class
+            // in ClassLoader.defineClass, transforming again is redundant
+            if (isDefineClassWrapped()) {
+                Log.warn("ClassLoader.defineClass is already instrumented, "
+                         + "agent disabled");
+                return;
+            }
+
+            inst.addTransformer(new Agent());
+        } catch (Throwable th) {
+            Log.error(th);
+        }
+    }
+
+    public byte[] transform(ClassLoader loader, String className,
+                            Class classBeingRedefined, ProtectionDomain pd, 
+                            byte[] b)
+    {
+        // Classes defined by the bootstrap loader never pass through
+        // ClassLoader.defineClass, and a redefined class was already 
+        // instrumented when it was first defined.
+        if (loader == null || classBeingRedefined != null)
+            return null;
+
+        byte[] instb = InstrumentationUtils.instrument(loader, b, 0,
+                                                        b.length);
+        if (instb == b)
+            return null;
+        return instb;
+    }
+}
+//[fiJava5+]
@@ -0,0 +1,380 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/* A persistent, content-addressed cache of instrumented classes, enabled by
+ * the <cache path="..."/> configuration element. Each entry is stored in its
+ * own file, named by the SHA-1 of the original class bytes, in a directory
+ * named by a fingerprint of the JavaTaint version, JRE version and
+ * configuration. Entries are written to a temporary file and renamed into
+ * place, so concurrent classloaders (or JVMs of the same user) sharing a
+ * cache never see a partially written entry, and need no locking.
+ *
+ * Cached classes are defined without being instrumented again, so anyone
+ * who can write to the cache can inject code into the JVM. The cache
+ * directory and its entries are made readable and writable only by their
+ * owner, and the cache is disabled if a directory is owned by another user
+ * or its permissions cannot be restricted. File permissions can only be
+ * set from JRE 1.6, and file owners read from JRE 1.7; on JRE 1.6, only the
+ * owner of a file (or root) can change its permissions. The cache is
+ * disabled on older JREs.
+ *
+ * The instrumentation of a class also depends on its supertypes (see
+ * Hierarchy), which are not part of its bytes. Each entry records the
+ * Hierarchy answers it was built with, and is only used if they still hold
+ * for the defining classloader. Classes that may depend on the methods of
+ * their superclasses are never cached.
+ *
+ * An entry that cannot be read or fails its checksum is deleted, and the
+ * class is instrumented as if it were not cached.
+ */
+
+final class ClassCache
+{
+    private static final int MAGIC = 0x4a544301;
+
+    private static final File dir;
+    private static final byte[] fingerprint;
+
+    /* File.setReadable, setWritable and setExecutable(boolean, boolean),
+     * or null before JRE 1.6
+     */
+    private static final Method[] setPermission;
+
+    private static final ThreadLocal sha1 = new ThreadLocal() {
+        protected Object initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (Exception e) {
+                throw new RuntimeException(e.toString());
+            }
+        }
+    };
+
+    static {
+        File d = null;
+        byte[] f = null;
+        Method[] m = null;
+
+        try {
+            Class[] args = new Class[] { Boolean.TYPE, Boolean.TYPE };
+            m = new Method[] { 
+                File.class.getMethod("setReadable", args),
+                File.class.getMethod("setWritable", args),
+                File.class.getMethod("setExecutable", args)
+            };
+        } catch (NoSuchMethodException e) {
+            /* JRE 1.4 or 1.5 */
+        }
+        setPermission = m;
+
+        try {
+            if (Configuration.cachePath != null && m == null) {
+                Log.warn("The class cache requires JRE 1.6 or above "
+                         + "(class cache disabled)");
+            } else if (Configuration.cachePath != null) {
+                MessageDigest md = (MessageDigest) sha1.get();
+                f = md.digest(fingerprintString().getBytes("UTF-8"));
+                File base = new File(Configuration.cachePath);
+                d = new File(base, hex(f));
+
+                if (!privateDir(base) || !privateDir(d))
+                    d = null;
+            }
+        } catch (Throwable th) {
+            Log.error(th);
+            d = null;
+        }
+
+        dir = d;
+        fingerprint = f;
+    }
+
+    private ClassCache() { }
+
+    /* Clear permission m of f for everybody, then give it back to the
+     * owner if allow is set. Fails if the current user does not own f.
+     */
+    private static boolean restrict(Method m, File f, boolean allow)
+        throws Exception
+    {
+        Boolean no = Boolean.FALSE, yes = Boolean.TRUE;
+
+        if (!((Boolean) m.invoke(f, new Object[] { no, no })).booleanValue())
+            return false;
+        return !allow 
+               || ((Boolean) m.invoke(f, new Object[] { yes, yes }))
+                  .booleanValue();
+    }
+
+    /* Make f readable and writable only by its owner */
+    private static boolean ownerOnly(File f, boolean isDir) throws Exception {
+        return restrict(setPermission[0], f, true)
+               && restrict(setPermission[1], f, true)
+               && restrict(setPermission[2], f, isDir);
+    }
+
+    /* Is f owned by the current user? Always true before JRE 1.7, where
+     * ownerOnly() fails instead.
+     */
+    private static boolean isOwner(File f) throws Exception {
+        Method toPath;
+
+        try {
+            toPath = File.class.getMethod("toPath", new Class[0]);
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+
+        Class files = Class.forName("java.nio.file.Files");
+        Class options = Class.forName("[Ljava.nio.file.LinkOption;");
+        Method getOwner = files.getMethod("getOwner", new Class[] { 
+                              Class.forName("java.nio.file.Path"), options });
+
+        Principal p = (Principal) getOwner.invoke(null, new Object[] { 
+                          toPath.invoke(f, new Object[0]), 
+                          Array.newInstance(options.getComponentType(), 0) 
+                      });
+        return p.getName().equals(System.getProperty("user.name"));
+    }
+
+    /* Create directory d if needed, and check that it is private to the 
+     * current user
+     */
+    private static boolean privateDir(File d) throws Exception {
+        if (!d.isDirectory() && !d.mkdirs()) {
+            Log.warn("Cannot create class cache directory " + d
+                     + " (class cache disabled)");
+            return false;
+        }
+
+        if (!isOwner(d) || !ownerOnly(d, true)) {
+            Log.warn("Class cache directory " + d + " is not owned by "
+                     + System.getProperty("user.name") 
+                     + " (class cache disabled)");
+            return false;
+        }
+        return true;
+    }
+
+    private static String fingerprintString() {
+        StringBuffer sb = new StringBuffer();
+
+        sb.append("@version@ ").append(VmInfo.vendor()).append(' ')
+          .append(VmInfo.version());
+
+        sb.append(" sql ").append(Configuration.sqlPolicyEnabled)
+          .append(" xss ").append(Configuration.xssPolicyEnabled)
+          .append(" exec ").append(Configuration.execPolicyEnabled)
+          .append(" file ").append(Configuration.filePolicyEnabled);
+
+        /* Sort filters, so that the fingerprint is stable across runs */
+        Map m = new TreeMap(Configuration.xssFilters);
+        for (Iterator it = m.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry e = (Map.Entry) it.next();
+            sb.append(" filter ").append(e.getKey()).append(' ')
+              .append(new TreeSet((Set) e.getValue()));
+        }
+        return sb.toString();
+    }
+
+    private static String hex(byte[] b) {
+        char[] c = new char[2 * b.length];
+        String digits = "0123456789abcdef";
+
+        for (int i = 0; i < b.length; i++) {
+            c[2 * i]     = digits.charAt((b[i] >> 4) & 0xf);
+            c[2 * i + 1] = digits.charAt(b[i] & 0xf);
+        }
+        return new String(c);
+    }
+
+    public static boolean enabled() { return dir != null; }
+
+    /** Return the cache key of a class file */
+    public static String key(byte[] b, int off, int len) {
+        MessageDigest md = (MessageDigest) sha1.get();
+
+        md.reset();
+        md.update(fingerprint);
+        md.update(b, off, len);
+        return hex(md.digest()) + ".jtc";
+    }
+
+    private static byte[] readFully(File f) throws IOException {
+        InputStream is = new FileInputStream(f);
+
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            for (int n; (n = is.read(buf)) > 0; )
+                bos.write(buf, 0, n);
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /** Return the cached instrumentation of the class scanned by cs,
+     * InstrumentationUtils.UNCHANGED if it is not instrumented, or null on
+     * a cache miss.
+     */
+    public static byte[] get(ClassLoader cl, ClassScanner cs, String key) {
+        File f = new File(dir, key);
+        byte[] b;
+
+        if (cs.mayInherit(cl))
+            return null;
+
+        try {
+            b = readFully(f);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (Throwable th) {
+            Log.debug(th);
+            return null;
+        }
+
+        try {
+            if (b.length < 8)
+                throw new IOException("Truncated cache entry " + f);
+
+            CRC32 crc = new CRC32();
+            crc.update(b, 0, b.length - 8);
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(b, b.length - 8, 8));
+            if (crc.getValue() != in.readLong())
+                throw new IOException("Corrupt cache entry " + f);
+
+            in = new DataInputStream(new ByteArrayInputStream(b, 0,
+                                                              b.length - 8));
+            if (in.readInt() != MAGIC)
+                throw new IOException("Invalid cache entry " + f);
+
+            for (int i = in.readInt(); i > 0; i--) {
+                String target = in.readUTF();
+                int answer = in.readByte();
+
+                if (GenericContextAdapter.resolve(cl, cs.className(),
+                            cs.superName(), cs.interfaces(), target)
+                        != answer)
+                    return null;
+            }
+
+            int len = in.readInt();
+            if (len < 0)
+                return InstrumentationUtils.UNCHANGED;
+
+            byte[] ret = new byte[len];
+            in.readFully(ret);
+            return ret;
+        } catch (Throwable th) {
+            Log.debug(th);
+            f.delete();
+            return null;
+        }
+    }
+
+    /** Cache the instrumentation of a class, null if it was not changed */
+    public static void put(String key, GenericContextAdapter[] gca,
+                           byte[] b)
+    {
+        Map resolved = new TreeMap();
+
+        for (int i = 0; i < gca.length; i++) {
+            if (gca[i].inherits())
+                return;
+
+            Map m = gca[i].resolved();
+            for (Iterator it = m.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry e = (Map.Entry) it.next();
+                resolved.put(((Klass) e.getKey()).internalName(),
+                             e.getValue());
+            }
+        }
+
+        File tmp = null;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+
+            out.writeInt(MAGIC);
+            out.writeInt(resolved.size());
+            for (Iterator it = resolved.entrySet().iterator(); it.hasNext();){
+                Map.Entry e = (Map.Entry) it.next();
+                out.writeUTF((String) e.getKey());
+                out.writeByte(((Integer) e.getValue()).intValue());
+            }
+
+            if (b == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(b.length);
+                out.write(b);
+            }
+            out.flush();
+
+            CRC32 crc = new CRC32();
+            byte[] entry = bos.toByteArray();
+            crc.update(entry);
+            out.writeLong(crc.getValue());
+            out.flush();
+            entry = bos.toByteArray();
+
+            tmp = File.createTempFile("jtc", ".tmp", dir);
+            if (!ownerOnly(tmp, false))
+                throw new IOException("Cannot restrict permissions of "
+                                      + tmp);
+
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                os.write(entry);
+            } finally {
+                os.close();
+            }
+
+            if (tmp.renameTo(new File(dir, key)))
+                tmp = null;
+        } catch (Throwable th) {
+            Log.debug(th);
+        } finally {
+            if (tmp != null)
+                tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.objectweb.asm.Opcodes;
+
+/* Almost none of the classes defined at runtime need instrumentation, and
+ * running them through ASM (see InstrumentationUtils) is expensive. This
+ * class walks the constant pool, the class header and the method table of
+ * a class file directly, and decides whether any of our context adapters
+ * could possibly instrument the class. No ASM objects are created, and
+ * only the class name, supertypes and candidate method names are decoded.
+ *
+ * A class may need instrumentation if it is an XSS filter, if it declares a
+ * method in one of the SqlContextAdapter, ServletContextAdapter or
+ * XssContextAdapter tables, or if it may inherit such a method from a
+ * superclass that was not instrumented (see GenericContextAdapter). Only
+ * the class file itself is consulted: whether a class actually inherits
+ * such methods depends on its supertypes, which are resolved (see
+ * Hierarchy) only for the classes handed to ASM.
+ */
+
+final class ClassScanner implements Opcodes
+{
+    private static final Set candidates;  /* Set of MethodDecl */
+    private static final byte[][][] names; /* Candidate names by length */
+
+    static {
+        Set s = new HashSet();
+        s.addAll(SqlContextAdapter.methods.keySet());
+        s.addAll(ServletContextAdapter.methods.keySet());
+        s.addAll(XssContextAdapter.servletOutputStreamMethods);
+        s.addAll(XssContextAdapter.printWriterMethods);
+
+        Set n = new HashSet();
+        int max = 0;
+        for (Iterator it = s.iterator(); it.hasNext(); ) {
+            String name = ((MethodDecl) it.next()).name();
+            n.add(name);
+            max = Math.max(max, name.length());
+        }
+
+        int[] count = new int[max + 1];
+        for (Iterator it = n.iterator(); it.hasNext(); )
+            count[((String) it.next()).length()]++;
+
+        byte[][][] b = new byte[max + 1][][];
+        for (int i = 0; i <= max; i++)
+            b[i] = new byte[count[i]][];
+
+        /* Method names in our tables are all ASCII */
+        for (Iterator it = n.iterator(); it.hasNext(); ) {
+            String name = (String) it.next();
+            int len = name.length();
+            byte[] nb = new byte[len];
+            for (int i = 0; i < len; i++)
+                nb[i] = (byte) name.charAt(i);
+            b[len][--count[len]] = nb;
+        }
+
+        candidates = s;
+        names = b;
+    }
+
+    /* Packages of the JDK whose interfaces never extend the interfaces in
+     * our tables
+     */
+    private static final String[] corePackages = {
+        "java/lang/", "java/io/", "java/util/"
+    };
+
+    private final byte[] b;
+    private final int off;
+    private final int len;
+    private int[] utf8; /* Offset of each CONSTANT_Utf8 entry, or 0 */
+    private int[] klass; /* Name index of each CONSTANT_Class entry, or 0 */
+    private int header;
+
+    private int access;
+    private String className;
+    private String superName;
+    private String[] interfaces;
+
+    public ClassScanner(byte[] b, int off, int len) {
+        this.b = b;
+        this.off = off;
+        this.len = len;
+        scanConstantPool();
+
+        int i = header;
+        access = readUnsignedShort(i);
+        className = readClass(readUnsignedShort(i + 2));
+        superName = readClass(readUnsignedShort(i + 4));
+        interfaces = new String[readUnsignedShort(i + 6)];
+        for (int j = 0; j < interfaces.length; j++)
+            interfaces[j] = readClass(readUnsignedShort(i + 8 + 2 * j));
+    }
+
+    private int readUnsignedShort(int i) {
+        if (i < 0 || i + 2 > len)
+            throw new IllegalArgumentException("Truncated class file");
+        return ((b[off + i] & 0xff) << 8) | (b[off + i + 1] & 0xff);
+    }
+
+    private int readInt(int i) {
+        return (readUnsignedShort(i) << 16) | readUnsignedShort(i + 2);
+    }
+
+    private void scanConstantPool() {
+        int n = readUnsignedShort(8);
+        utf8 = new int[n];
+        klass = new int[n];
+
+        int i = 10;
+        for (int j = 1; j < n; j++) {
+            if (i >= len)
+                throw new IllegalArgumentException("Truncated class file");
+
+            switch (b[off + i]) {
+                case 1: /* Utf8 */
+                    utf8[j] = i + 3;
+                    i += 3 + readUnsignedShort(i + 1);
+                    break;
+
+                case 7: /* Class */
+                    klass[j] = readUnsignedShort(i + 1);
+                    i += 3;
+                    break;
+
+                case 8:  /* String */
+                case 16: /* MethodType */
+                case 19: /* Module */
+                case 20: /* Package */
+                    i += 3;
+                    break;
+
+                case 15: /* MethodHandle */
+                    i += 4;
+                    break;
+
+                case 3:  /* Integer */
+                case 4:  /* Float */
+                case 9:  /* Fieldref */
+                case 10: /* Methodref */
+                case 11: /* InterfaceMethodref */
+                case 12: /* NameAndType */
+                case 17: /* Dynamic */
+                case 18: /* InvokeDynamic */
+                    i += 5;
+                    break;
+
+                case 5: /* Long */
+                case 6: /* Double */
+                    i += 9;
+                    j++;
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown constant "
+                                                       + "pool tag "
+                                                       + b[off + i]);
+            }
+        }
+
+        if (i > len)
+            throw new IllegalArgumentException("Truncated class file");
+        header = i;
+    }
+
+    /* Decode a (modified UTF-8) CONSTANT_Utf8 entry */
+    private String readUtf8(int index) {
+        int i = utf8[index];
+        int len = readUnsignedShort(i - 2);
+        char[] c = new char[len];
+        int n = 0;
+
+        for (int end = i + len; i < end; ) {
+            int x = b[off + i++] & 0xff;
+
+            if (x < 0x80) {
+                c[n++] = (char) x;
+            } else if (x < 0xe0) {
+                c[n++] = (char) (((x & 0x1f) << 6) | (b[off + i++] & 0x3f));
+            } else {
+                int y = b[off + i++] & 0x3f;
+                c[n++] = (char) (((x & 0x0f) << 12) | (y << 6)
+                                 | (b[off + i++] & 0x3f));
+            }
+        }
+        return new String(c, 0, n);
+    }
+
+    private String readClass(int index) {
+        if (index == 0)
+            return null;
+        return readUtf8(klass[index]);
+    }
+
+    /* Does CONSTANT_Utf8 entry index hold one of our candidate names? */
+    private boolean isCandidateName(int index) {
+        int i = utf8[index];
+        int len = readUnsignedShort(i - 2);
+
+        if (len >= names.length)
+            return false;
+
+        byte[][] nb = names[len];
+        for (int j = 0; j < nb.length; j++) {
+            int k = 0;
+            while (k < len && nb[j][k] == b[off + i + k])
+                k++;
+            if (k == len)
+                return true;
+        }
+        return false;
+    }
+
+    /* Skip a field_info or method_info structure */
+    private int skipMember(int i) {
+        int n = readUnsignedShort(i + 6);
+        i += 8;
+        for (int j = 0; j < n; j++)
+            i += 6 + readInt(i + 2);
+        return i;
+    }
+
+    /* Return the offset of methods_count */
+    private int methodTable() {
+        int i = header + 8 + 2 * interfaces.length;
+        int n = readUnsignedShort(i);
+
+        i += 2;
+        for (int j = 0; j < n; j++)
+            i = skipMember(i);
+        return i;
+    }
+
+    private boolean declaresCandidate() {
+        int i = methodTable();
+        int n = readUnsignedShort(i);
+        i += 2;
+        for (int j = 0; j < n; j++) {
+            int nameIndex = readUnsignedShort(i + 2);
+
+            if (isCandidateName(nameIndex)) {
+                MethodDecl md = new MethodDecl(readUnsignedShort(i),
+                                    readUtf8(nameIndex),
+                                    readUtf8(readUnsignedShort(i + 4)));
+                if (candidates.contains(md))
+                    return true;
+            }
+            i = skipMember(i);
+        }
+        return false;
+    }
+
+    /** Return the methods (as MethodDecls) declared by this class */
+    public List methods() {
+        List l = new ArrayList();
+        int i = methodTable();
+        int n = readUnsignedShort(i);
+        i += 2;
+        for (int j = 0; j < n; j++) {
+            l.add(new MethodDecl(readUnsignedShort(i),
+                                 readUtf8(readUnsignedShort(i + 2)),
+                                 readUtf8(readUnsignedShort(i + 4))));
+            i = skipMember(i);
+        }
+        return l;
+    }
+
+    public String className()    { return className; }
+
+    public String superName()    { return superName; }
+
+    public String[] interfaces() { return interfaces; }
+
+    /** Return false only if no context adapter could instrument this class */
+    public boolean mayInstrument(ClassLoader cl) {
+        /* None of our adapters instrument interfaces or annotations, and
+         * only XSS filters may be enums.
+         */
+        if ((access & (ACC_INTERFACE|ACC_ANNOTATION)) != 0)
+            return false;
+
+        if (Configuration.xssFilters.containsKey(className))
+            return true;
+
+        if ((access & ACC_ENUM) != 0)
+            return false;
+
+        return declaresCandidate() || mayInheritInterfaces();
+    }
+
+    /* Could this class implement an interface of our tables through its
+     * own interfaces, with the methods coming from its superclass? This
+     * is the part of GenericContextAdapter.inheritable that needs no
+     * supertypes to be resolved.
+     */
+    private boolean mayInheritInterfaces() {
+        if (superName == null || "java/lang/Object".equals(superName))
+            return false;
+
+        for (int i = 0; i < interfaces.length; i++) {
+            int j = 0;
+            while (j < corePackages.length 
+                   && !interfaces[i].startsWith(corePackages[j]))
+                j++;
+            if (j == corePackages.length)
+                return true;
+        }
+        return false;
+    }
+
+    /** May this class inherit security-relevant methods from an 
+     * uninstrumented superclass? Resolves the supertypes of the class.
+     */
+    public boolean mayInherit(ClassLoader cl) {
+        return !GenericContextAdapter.inheritable(cl,
+                    SqlContextAdapter.methods, superName,
+                    interfaces).isEmpty()
+            || !GenericContextAdapter.inheritable(cl,
+                    ServletContextAdapter.methods, superName,
+                    interfaces).isEmpty();
+    }
+
+    /** Is this class excluded from instrumentation by the configuration? */
+    public boolean isExcluded(ClassLoader cl) {
+        if (cl != null && Configuration.excludedLoaders.contains(
+                    cl.getClass().getName()))
+            return true;
+
+        List l = Configuration.excludedPackages;
+        for (int i = 0; i < l.size(); i++)
+            if (className.startsWith((String) l.get(i)))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+import java.lang.ref.WeakReference;
+
+/** The result of ClassUtil.types: which of a list of (servlet) classes a 
+ * single runtime class is assignment compatible with, as one bit per 
+ * class name. ClassTypes objects are immutable, so that instrumented 
+ * classes may cache one in a static field without any locking. The runtime
+ * class is only weakly referenced, as the caching class may belong to a 
+ * parent classloader.
+ */
+public final class ClassTypes
+{
+    private final WeakReference type;
+    private final int bits;
+
+    ClassTypes(Class c, int bits) {
+        this.type = new WeakReference(c);
+        this.bits = bits;
+    }
+
+    public boolean isType(Class c) { return type.get() == c; }
+
+    public boolean is(int i) { return (bits & (1 << i)) != 0; }
+}
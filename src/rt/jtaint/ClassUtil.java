@@ -15,17 +15,67 @@
  */
 package jtaint;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/* Servlet classes cannot be referenced directly (see InstrumentationUtils),
+ * so assignability is tested by looking the class up by name in the 
+ * classloader of the runtime class. JVM Specification 5.3.5 guarantees 
+ * that all superclasses and superinterfaces of a class are loaded before 
+ * the class itself is. findLoadedClass is synchronized in many 
+ * classloaders, so each ClassTypes result is memoized per runtime class 
+ * and names array. Instrumented classes always pass the same array, and 
+ * arrays hash by identity, so a memo hit is a lookup and nothing more. The
+ * table has weak keys so that web application classes may still be
+ * unloaded.
+ */
+
 public final class ClassUtil
 {
-    public static boolean isInstance(Object o, ClassLoader cl, 
-                                     String className) {
+    /* Class -> (String[] names -> ClassTypes) */
+    private static final Map typeCache = new WeakHashMap();
+
+    public static boolean isAssignable(Class c, String className) {
+        ClassLoader cl = c.getClassLoader();
+
         if (cl == null) 
             return false;
 
-        Class c = cl.@internal@findLoadedClass(className);
+        Class k = cl.@internal@findLoadedClass(className);
 
-        if (c == null)
+        if (k == null)
             return false;
-        return c.isInstance(o);
+        return k.isAssignableFrom(c);
+    }
+
+    /** Return which of names[] class c is assignment compatible with */
+    public static ClassTypes types(Class c, String[] names) {
+        ClassTypes t;
+
+        synchronized(typeCache) {
+            Map m = (Map) typeCache.get(c);
+            t = m == null ? null : (ClassTypes) m.get(names);
+        }
+
+        if (t != null)
+            return t;
+
+        /* Never call into the classloader with our lock held */
+        int bits = 0;
+        for (int i = 0; i < names.length; i++)
+            if (isAssignable(c, names[i]))
+                bits |= 1 << i;
+        t = new ClassTypes(c, bits);
+
+        synchronized(typeCache) {
+            Map m = (Map) typeCache.get(c);
+            if (m == null) {
+                m = new HashMap();
+                typeCache.put(c, m);
+            }
+            m.put(names, t);
+        }
+        return t;
     }
 }
@@ -26,6 +26,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.StringTokenizer;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -52,6 +53,17 @@ public final class ConfigParser extends DefaultHandler
     private Map fileWhitelist = new HashMap();
     private Map sqlWhitelist = new HashMap();
     private Map xssWhitelist = new HashMap();
+
+    private List excludedPackages = new ArrayList();
+    private Set excludedLoaders = new HashSet();
+
+    private String cachePath = null;
+    private int warmupThreads = 0;
+    private Set warmupJars = new HashSet();
+    private int warmupMaxClasses = 1024;
+    private boolean telemetryEnabled = false;
+    private boolean telemetryJmx = false;
+    private String telemetryDump = null;
     
     private Map elemMap = new HashMap();
 
@@ -60,6 +72,10 @@ public final class ConfigParser extends DefaultHandler
         elemMap.put("policy", new PolicyHandler());
         elemMap.put("filter", new FilterHandler());
         elemMap.put("whitelist", new WhitelistHandler());
+        elemMap.put("exclude", new ExcludeHandler());
+        elemMap.put("cache", new CacheHandler());
+        elemMap.put("warmup", new WarmupHandler());
+        elemMap.put("telemetry", new TelemetryHandler());
     }
 
     public void parse() {
@@ -246,6 +262,94 @@ public final class ConfigParser extends DefaultHandler
         }
     }
 
+    private final class ExcludeHandler extends ElemHandler
+    {
+        public void start(String name, Attributes attrs) {
+            String pkgName    = attrs.getValue("package");
+            String loaderName = attrs.getValue("classloader");
+
+            if (pkgName == null && loaderName == null) {
+                Log.warn("Invalid exclude (skipping)");
+                return;
+            }
+
+            /* Store package names as internal name prefixes */
+            if (pkgName != null)
+                excludedPackages.add(pkgName.replace('.', '/') + "/");
+            if (loaderName != null)
+                excludedLoaders.add(loaderName);
+        }
+    }
+
+    private final class CacheHandler extends ElemHandler
+    {
+        public void start(String name, Attributes attrs) {
+            String path = attrs.getValue("path");
+
+            if (path == null) {
+                Log.warn("Invalid cache (skipping)");
+                return;
+            }
+            cachePath = path;
+        }
+    }
+
+    private final class WarmupHandler extends ElemHandler
+    {
+        private int parseCount(String s, int min) {
+            int n = Integer.parseInt(s);
+            if (n < min)
+                throw new NumberFormatException(s);
+            return n;
+        }
+
+        public void start(String name, Attributes attrs) {
+            String threads = attrs.getValue("threads");
+            String jars = attrs.getValue("jars");
+            String maxClasses = attrs.getValue("max-classes");
+            int n, max = warmupMaxClasses;
+
+            if (jars == null) {
+                Log.warn("Invalid warmup, no jars given (skipping)");
+                return;
+            }
+
+            try {
+                n = parseCount(threads, 0);
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid warmup thread count " + threads 
+                         + " (skipping)");
+                return;
+            }
+
+            try {
+                if (maxClasses != null)
+                    max = parseCount(maxClasses, 1);
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid warmup max-classes " + maxClasses 
+                         + " (skipping)");
+                return;
+            }
+
+            for (StringTokenizer st = new StringTokenizer(jars); 
+                 st.hasMoreTokens(); )
+                warmupJars.add(st.nextToken());
+            warmupThreads = n;
+            warmupMaxClasses = max;
+        }
+    }
+
+    private final class TelemetryHandler extends ElemHandler
+    {
+        public void start(String name, Attributes attrs) {
+            String jmx = attrs.getValue("jmx");
+
+            telemetryEnabled = true;
+            telemetryJmx = jmx == null || Boolean.valueOf(jmx).booleanValue();
+            telemetryDump = attrs.getValue("dump");
+        }
+    }
+
     /* Accessors for all configuration options */
     public Policy       execPolicy()    { return execPolicy; }
     public Policy       filePolicy()    { return filePolicy; }
@@ -258,4 +362,16 @@ public final class ConfigParser extends DefaultHandler
     public Map          fileWhitelist() { return fileWhitelist; }
     public Map          sqlWhitelist()  { return sqlWhitelist; }
     public Map          xssWhitelist()  { return xssWhitelist; }
+
+    public List         excludedPackages() { return excludedPackages; }
+    public Set          excludedLoaders()  { return excludedLoaders; }
+
+    public String       cachePath()     { return cachePath; }
+    public int          warmupThreads() { return warmupThreads; }
+    public Set          warmupJars()    { return warmupJars; }
+    public int          warmupMaxClasses() { return warmupMaxClasses; }
+
+    public boolean      telemetryEnabled() { return telemetryEnabled; }
+    public boolean      telemetryJmx()     { return telemetryJmx; }
+    public String       telemetryDump()    { return telemetryDump; }
 }
@@ -26,7 +26,9 @@ package jtaint;
  * locking or synchronization
  */
 
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public final class Configuration
 {
@@ -55,6 +57,28 @@ public final class Configuration
     public static final Map sqlWhitelist;
     public static final Map xssWhitelist;
 
+    /* Internal name prefixes ("com/example/") of excluded packages, and
+     * class names of classloaders whose classes are never instrumented
+     */
+    public static final List excludedPackages;
+    public static final Set excludedLoaders;
+
+    /* Directory of the instrumented class cache, or null (see ClassCache) */
+    public static final String cachePath;
+
+    /* Number of background instrumentation threads, or 0, the names or
+     * absolute paths of the jars they instrument, and the maximum number of
+     * instrumented classes held for each classloader (see Warmup)
+     */
+    public static final int warmupThreads;
+    public static final Set warmupJars;
+    public static final int warmupMaxClasses;
+
+    /* Instrumentation telemetry settings (see Telemetry) */
+    public static final boolean telemetryEnabled;
+    public static final boolean telemetryJmx;
+    public static final String telemetryDump;
+
     static {
         ConfigParser cp = new ConfigParser();
         cp.parse();
@@ -83,5 +107,17 @@ public final class Configuration
         fileWhitelist = cp.fileWhitelist();
         sqlWhitelist =  cp.sqlWhitelist();
         xssWhitelist =  cp.xssWhitelist();
+
+        excludedPackages = cp.excludedPackages();
+        excludedLoaders = cp.excludedLoaders();
+
+        cachePath = cp.cachePath();
+        warmupThreads = cp.warmupThreads();
+        warmupJars = cp.warmupJars();
+        warmupMaxClasses = cp.warmupMaxClasses();
+
+        telemetryEnabled = cp.telemetryEnabled();
+        telemetryJmx = cp.telemetryJmx();
+        telemetryDump = cp.telemetryDump();
     }
 }
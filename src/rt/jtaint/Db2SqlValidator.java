@@ -32,13 +32,12 @@ public final class Db2SqlValidator extends SqlValidator
     {
         if (!s.@internal@isTainted()) return;
 
-        Taint t = s.@internal@taint();
         int len = s.length();
 
         for (int i = 0; i < len; i++) {
             char c = s.charAt(i);
 
-            if (t.get(i)) {
+            if (s.@internal@isTaintedAt(i)) {
                 i = SqlParseUtil.parseTaintedValue(s, i, this);
                 continue;
             }
@@ -61,20 +61,10 @@ public final class FileUtil
     }
 
     private static String getUntaintedPrefix(String s) {
-        @StringBuilder@ sb = new @StringBuilder@();
-        Taint t;
-        int len = s.length();
-
-        if (!s.@internal@isTainted()) return s;
-        t = s.@internal@taint();
-
-        for (int i = 0; i < len; i++) {
-            if (t.get(i)) 
-                break;
-            sb.append(s.charAt(i));
-        }
+        int i = s.@internal@nextTaintedIndex(0);
 
-        return sb.toString();
+        if (i < 0) return s;
+        return s.substring(0, i);
     }
 
     /** Determine if a file access is a directory traversal attack. 
@@ -122,11 +112,10 @@ public final class FileUtil
 
     private static void scanNull(String path, File result) {
         int len = path.length();
-        Taint t = path.@internal@taint();
 
         for (int i = 0; i < len; i++)
             if (path.charAt(i) == '\0') {
-                if (t != null && t.get(i)) 
+                if (path.@internal@isTaintedAt(i)) 
                     abortFile(null, result, "Tainted null byte: " + path);
                 Log.warn("Untainted null byte in filename " + path);
             }
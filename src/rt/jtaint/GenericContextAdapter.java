@@ -15,24 +15,52 @@
  */
 package jtaint;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
+/* Marks the methods of a class that match a security-relevant method of some
+ * Klass. The supertypes of the class are resolved with Hierarchy, so a
+ * method is skipped when the class is known not to be assignment compatible
+ * with the Klass. If some supertype cannot be resolved, the method is
+ * marked and the runtime type checks decide.
+ *
+ * A class may also inherit security-relevant methods from a superclass that
+ * does not implement the Klass, and so was not instrumented itself. Stubs
+ * calling the superclass are added for these methods (see StubAdapter).
+ */
+
 class GenericContextAdapter extends ClassAdapter implements Opcodes
 {
+    private final ClassLoader cl;
     private String className;
+    private String superName;
+    private String[] interfaces;
     private boolean skip;
     private final Map methods;
+    private final Map resolved; /* Map Klass -> Integer */
+    private final Set declared;
     private Map instrumentedMethods;
+    private List stubs;
+    private boolean inherits;
 
-    public GenericContextAdapter(ClassVisitor cv, Map methods) {
+    public GenericContextAdapter(ClassVisitor cv, Map methods, 
+                                 ClassLoader cl) 
+    {
         super(cv);
         this.methods = methods;
+        this.cl = cl;
+        this.resolved = new HashMap();
+        this.declared = new HashSet();
     }
 
     public void visit(int version, int access, String name, 
@@ -44,9 +72,36 @@ class GenericContextAdapter extends ClassAdapter implements Opcodes
          */
         skip = (access & (ACC_INTERFACE|ACC_ANNOTATION|ACC_ENUM)) != 0;
         className = name;
+        this.superName = superName;
+        this.interfaces = interfaces == null ? new String[0] : interfaces;
         cv.visit(version, access, name, signature, superName, interfaces);
     }
 
+    static int resolve(ClassLoader cl, String className, String superName,
+                       String[] interfaces, String target)
+    {
+        if (className.equals(target))
+            return Hierarchy.YES;
+        return Hierarchy.isSubtype(cl, superName, interfaces, target);
+    }
+
+    private int resolve(Klass k) {
+        Integer r = (Integer) resolved.get(k);
+
+        if (r == null) {
+            r = new Integer(resolve(cl, className, superName, interfaces,
+                                    k.internalName()));
+            resolved.put(k, r);
+        }
+        return r.intValue();
+    }
+
+    private void mark(MethodDecl md, Klass k) {
+        if (instrumentedMethods == null)
+            instrumentedMethods = new HashMap();
+        instrumentedMethods.put(md, k);
+    }
+
     public MethodVisitor visitMethod(final int access, final String name, 
             final String desc, String signature, 
             String[] exceptions) 
@@ -59,19 +114,101 @@ class GenericContextAdapter extends ClassAdapter implements Opcodes
          * abstract and the other is not
          */
         MethodDecl md = new MethodDecl(access, name, desc);
+        declared.add(md);
 
         if (methods.containsKey(md)) {
             Klass k = (Klass) methods.get(md);
             if (k.isExact() && !className.equals(k.internalName()))
                 return mv;
-            if (instrumentedMethods == null)
-                instrumentedMethods = new HashMap();
-            instrumentedMethods.put(md, k);
+            if (!k.isExact() && resolve(k) == Hierarchy.NO)
+                return mv;
+            mark(md, k);
         }
         return mv;
     }
 
+    /* A superclass can only lack an interface that this class has if the
+     * interface is reached through our own interfaces, so inherited methods
+     * need to be considered only for those Klasses. Returns the Klasses of
+     * methods that may be inherited from an uninstrumented superclass.
+     */
+    static Set inheritable(ClassLoader cl, Map methods, String superName,
+                           String[] interfaces) 
+    {
+        Set s = new HashSet();
+
+        if (superName == null || "java/lang/Object".equals(superName)
+                || interfaces.length == 0)
+            return s;
+
+        Set klasses = new HashSet(methods.values());
+        String[] none = new String[0];
+
+        for (Iterator it = klasses.iterator(); it.hasNext(); ) {
+            Klass k = (Klass) it.next();
+            if (k.isExact() || Hierarchy.isSubtype(cl, null, interfaces,
+                        k.internalName()) != Hierarchy.YES)
+                continue;
+            if (Hierarchy.isSubtype(cl, superName, none, k.internalName()) 
+                    != Hierarchy.NO)
+                continue;
+            s.add(k);
+        }
+        return s;
+    }
+
+    private void addInheritedMethods() {
+        Set s = inheritable(cl, methods, superName, interfaces);
+        inherits = !s.isEmpty();
+
+        for (Iterator it = s.iterator(); it.hasNext(); )
+            addInheritedMethods((Klass) it.next());
+    }
+
+    private void addInheritedMethods(Klass k) {
+        Set seen = new HashSet(declared);
+
+        for (String c = superName; c != null && !"java/lang/Object".equals(c);){
+            List l = Hierarchy.methods(cl, c);
+            String[] s = Hierarchy.supertypes(cl, c);
+
+            if (l == null || s == null)
+                return;
+
+            for (int i = 0; i < l.size(); i++) {
+                MethodDecl md = (MethodDecl) l.get(i);
+
+                if (!seen.add(md) || methods.get(md) != k 
+                        || (md.access() & ACC_FINAL) != 0)
+                    continue;
+
+                MethodDecl stub = new MethodDecl(md.access() 
+                        & (ACC_PUBLIC|ACC_PROTECTED), md.name(), md.type());
+                if (stubs == null)
+                    stubs = new ArrayList();
+                stubs.add(stub);
+                mark(stub, k);
+            }
+            c = s[0];
+        }
+    }
+
+    public void visitEnd() {
+        if (!skip)
+            addInheritedMethods();
+        cv.visitEnd();
+    }
+
     public Map instrumentedMethods() { return instrumentedMethods; }
 
+    /** Inherited methods that must be overridden by stubs, or null */
+    public List stubs() { return stubs; }
+
     public boolean instrumented() { return instrumentedMethods != null; }
+
+    /** Map Klass -> Integer, the Hierarchy answers this class depends on */
+    public Map resolved() { return resolved; }
+
+    /** Did this class depend on the methods of its superclasses? */
+    public boolean inherits() { return inherits; }
 }
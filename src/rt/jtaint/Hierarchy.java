@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/* Resolves the supertypes of a class while it is being defined, before any
+ * of them need to have been loaded. Every class passed to
+ * InstrumentationUtils is recorded here, and supertypes that were never
+ * recorded are read as class file resources from the defining classloader.
+ * The index is kept per classloader, with weak keys so that web application
+ * classloaders may still be unloaded.
+ *
+ * A supertype that cannot be found (for example, a class generated at
+ * runtime by another classloader) makes the answer UNKNOWN rather than NO,
+ * and the caller must then fall back to runtime type checks.
+ */
+
+final class Hierarchy
+{
+    public static final int NO      = 0;
+    public static final int YES     = 1;
+    public static final int UNKNOWN = 2;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String[] MISSING = new String[0];
+
+    /* Map ClassLoader -> (Map internal name -> {superName, interfaces...}) */
+    private static final Map index = new WeakHashMap();
+    private static final Map bootIndex = new HashMap();
+
+    private Hierarchy() { }
+
+    private static Map table(ClassLoader cl) {
+        if (cl == null)
+            return bootIndex;
+
+        Map m = (Map) index.get(cl);
+        if (m == null) {
+            m = new HashMap();
+            index.put(cl, m);
+        }
+        return m;
+    }
+
+    private static String[] entry(String superName, String[] interfaces) {
+        String[] s = new String[interfaces.length + 1];
+        s[0] = superName;
+        System.arraycopy(interfaces, 0, s, 1, interfaces.length);
+        return s;
+    }
+
+    private static ClassScanner read(ClassLoader cl, String name) {
+        String resource = name + ".class";
+        InputStream is = null;
+
+        try {
+            if (cl == null)
+                is = ClassLoader.getSystemResourceAsStream(resource);
+            else
+                is = cl.getResourceAsStream(resource);
+
+            if (is == null)
+                return null;
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = is.read(buf)) > 0; )
+                bos.write(buf, 0, n);
+
+            byte[] b = bos.toByteArray();
+            return new ClassScanner(b, 0, b.length);
+        } catch (Throwable th) {
+            Log.debug(th);
+            return null;
+        } finally {
+            try {
+                if (is != null) is.close();
+            } catch (IOException e) { /* Ignore */ }
+        }
+    }
+
+    /** Record the supertypes of a class defined by classloader cl */
+    public static void define(ClassLoader cl, String name, String superName,
+                              String[] interfaces)
+    {
+        String[] s = entry(superName, interfaces);
+        synchronized(index) {
+            table(cl).put(name, s);
+        }
+    }
+
+    /** Return {superName, interfaces...} for a class, or null if the class
+     * cannot be found by classloader cl.
+     */
+    public static String[] supertypes(ClassLoader cl, String name) {
+        String[] s;
+
+        synchronized(index) {
+            s = (String[]) table(cl).get(name);
+        }
+
+        if (s == null) {
+            /* Never call into the classloader with our lock held */
+            ClassScanner cs = read(cl, name);
+            s = cs == null ? MISSING
+                           : entry(cs.superName(), cs.interfaces());
+            synchronized(index) {
+                table(cl).put(name, s);
+            }
+        }
+        return s == MISSING ? null : s;
+    }
+
+    /** Return YES if a class with the given supertypes is assignment
+     * compatible with target, NO if it is not, and UNKNOWN if some supertype
+     * could not be resolved.
+     */
+    public static int isSubtype(ClassLoader cl, String superName,
+                                String[] interfaces, String target)
+    {
+        LinkedList queue = new LinkedList();
+        Set seen = new HashSet();
+        int ret = NO;
+
+        if (superName != null)
+            queue.add(superName);
+        for (int i = 0; i < interfaces.length; i++)
+            queue.add(interfaces[i]);
+
+        while (!queue.isEmpty()) {
+            String n = (String) queue.removeFirst();
+
+            if (n == null || !seen.add(n) || OBJECT.equals(n))
+                continue;
+            if (n.equals(target))
+                return YES;
+
+            String[] s = supertypes(cl, n);
+            if (s == null) {
+                ret = UNKNOWN;
+                continue;
+            }
+
+            for (int i = 0; i < s.length; i++)
+                queue.add(s[i]);
+        }
+        return ret;
+    }
+
+    /** Return the methods (as MethodDecls) declared by a class, or null if
+     * the class cannot be found by classloader cl. These are not memoized,
+     * they are only needed when a class inherits security-relevant methods
+     * from a superclass that was not itself instrumented.
+     */
+    public static List methods(ClassLoader cl, String name) {
+        ClassScanner cs = read(cl, name);
+        return cs == null ? null : cs.methods();
+    }
+}
@@ -24,16 +24,14 @@ public final class HypersonicSqlValidator extends SqlValidator
     public void validateSqlQuery(String s)
     {
         int len;
-        Taint t;
         if (!s.@internal@isTainted()) return;
 
-        t = s.@internal@taint();
         len = s.length();
 
         for (int i = 0; i < len; i++) {
             char c = s.charAt(i);
 
-            if (t.get(i)) {
+            if (s.@internal@isTaintedAt(i)) {
                 i = SqlParseUtil.parseTaintedValue(s, i, this);
                 continue;
             }
@@ -16,6 +16,8 @@
 package jtaint;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -23,23 +25,32 @@ import org.objectweb.asm.ClassWriter;
 
 /* This class performs Dynamic Bytecode Instrumentation (DBI) on all classes 
  * loaded at runtime in the JVM. This class is called by various methods in
- * java.lang.ClassLoader by code inserted by jtaint.ClassLoaderAdapter.
+ * java.lang.ClassLoader by code inserted by jtaint.ClassLoaderAdapter, or
+ * by jtaint.Agent when JavaTaint is run as a java.lang.instrument agent.
  *
  * We are interested in instrumenting classes that implement various java.sql
  * interfaces (Statement, Connection, RowSet), and various servlet interfaces
  * (javax.servlet.ServletRequest, javax.servlet.http.HttpServletRequest,
  * javax.servlet.http.Cookie, javax.servlet.http.HttpUtils).
  *
- * However, we cannot tell if a particular class implements these interfaces
- * at load time, because the superclasses and superinterfaces may not have
- * been loaded. For example, a superclass may implement one of the above
- * interfaces, or this class may implement a subinterface of one of the above
- * interfaces. 
+ * A class may implement these interfaces through a superclass, or through a
+ * subinterface of one of the above interfaces, and the JVM may not have
+ * loaded any of them yet. For this reason, the supertypes of each class are
+ * resolved from the class files available to its defining classloader (see 
+ * jtaint.Hierarchy), and only methods of classes that implement one of the
+ * above interfaces, or whose supertypes cannot all be found, are
+ * instrumented. Methods that a class inherits from a superclass which does
+ * not implement the interface are overridden by stubs and instrumented.
  *
- * For this reason, we instrument any method that has the same method 
- * descriptor as the methods we wish to perform security checks on. At runtime,
- * we then perform checks on the class to ensure that our security checks
- * occur only when the class actually implements one of the above interfaces.
+ * Classes that cannot need instrumentation, or that the configuration
+ * excludes, are recognized by jtaint.ClassScanner without parsing them with
+ * ASM. The results of instrumentation may be kept across runs by
+ * jtaint.ClassCache, or computed ahead of time by jtaint.Warmup.
+ * Statistics on the cost of instrumentation are kept by jtaint.Telemetry.
+ *
+ * The instrumented methods still check at runtime that the current object 
+ * actually implements one of the above interfaces, as the answer is not
+ * known at load time when some supertype could not be resolved.
  *
  * For SQL classes, java.sql is already present in rt.jar, and guaranteed to
  * be available to the bootstrap loader. Thus all runtime SQL checks are 
@@ -57,82 +68,211 @@ import org.objectweb.asm.ClassWriter;
  *
  * As a consequence, we must use reflection to dynamically probe for the
  * existence of the above servlet interfaces, and then check if the current
- * class implements the interface. We do this by adding a private 
- * final boolean to cache the result of this check for each of the above 
- * classes. 
+ * class implements the interface. The result of this check is cached
+ * for each runtime class (see jtaint.ClassUtil).
  */
 
 public final class InstrumentationUtils
 {
-    private static byte[] copyOf(byte[] b, int off, int len) {
-        if (off == 0 && len == b.length)
-            return b;
-        byte[] br = new byte[len];
-        System.arraycopy(b, off, br, 0, len);
-        return br;
+    /* Per-thread scratch buffer for classes defined from direct ByteBuffers.
+     * It is cleared while in use, in case instrumentation defines a class.
+     */
+    //[ifJava5+]
+    private static final ThreadLocal scratch = new ThreadLocal();
+    //[fiJava5+]
+
+    private static List stubs(GenericContextAdapter[] gca) {
+        List l = null;
+
+        for (int i = 0; i < gca.length; i++) {
+            if (gca[i].stubs() == null) 
+                continue;
+            if (l == null)
+                l = new ArrayList();
+            l.addAll(gca[i].stubs());
+        }
+        return l;
     }
 
-    public static byte[] instrument(byte[] b, int off, int len) {
+    /* Returned by transform for classes that are left unchanged */
+    static final byte[] UNCHANGED = new byte[0];
+
+    /** Instrument a class that cs.mayInstrument(), returning UNCHANGED if 
+     * no instrumentation was needed after all. 
+     */
+    static byte[] transform(ClassLoader cl, ClassScanner cs, byte[] b, 
+                            int off, int len) 
+    {
+        String key = null;
+        if (ClassCache.enabled()) {
+            key = ClassCache.key(b, off, len);
+            byte[] cached = ClassCache.get(cl, cs, key);
+
+            if (cached != null) {
+                Telemetry.count(Telemetry.CACHE_HITS);
+                return cached;
+            }
+        }
+
+        Telemetry.count(Telemetry.PARSED);
+
+        ClassReader cr = new ClassReader(b, off, len);
+
+        EmptyClassVisitor empty   = new EmptyClassVisitor();
+        FilterContextAdapter ftc  = new FilterContextAdapter(empty);
+        SqlContextAdapter sqc     = new SqlContextAdapter(ftc, cl);
+        ServletContextAdapter svc = new ServletContextAdapter(sqc, cl);
+        XssContextAdapter xsa     = new XssContextAdapter(svc);
+
+        cr.accept(xsa, ClassReader.SKIP_CODE + ClassReader.SKIP_DEBUG +
+                       ClassReader.SKIP_FRAMES);
+        GenericContextAdapter[] gca = { sqc, svc };
+
+        if (!xsa.instrumented() && !sqc.instrumented() 
+                && !svc.instrumented() && !ftc.instrumented()) {
+            if (key != null)
+                ClassCache.put(key, gca, null);
+            return UNCHANGED;
+        }
+       
+        ClassWriter cw = new ClassWriter(cr, 0);
+        ClassVisitor cv = cw;
+
+        if (ftc.instrumented()) {
+            cv = new FilterAdapter(cv, ftc);
+            Telemetry.count(Telemetry.FILTER);
+        }
+        if (sqc.instrumented()) {
+            cv = new SqlAdapter(cv, sqc);
+            Telemetry.count(Telemetry.SQL);
+        }
+        if (svc.instrumented()) {
+            cv = new ServletAdapter(cv, svc);
+            Telemetry.count(Telemetry.SERVLET);
+        }
+        if (xsa.instrumented()) {
+            cv = new XssAdapter(cv, xsa);
+            Telemetry.count(Telemetry.XSS);
+        }
+
+        List stubs = stubs(gca);
+        if (stubs != null)
+            cv = new StubAdapter(cv, stubs);
+        cr.accept(cv, 0);
+
+        byte[] instb = cw.toByteArray();
+        if (key != null)
+            ClassCache.put(key, gca, instb);
+        return instb;
+    }
+
+    /** Instrument the class held in b[off..off+len), returning b itself if
+     * the class is left unchanged. Instrumented classes are returned in a
+     * new array, starting at offset 0.
+     */
+    public static byte[] instrument(ClassLoader cl, byte[] b, int off, 
+                                    int len) 
+    {
+        if (!Telemetry.enabled())
+            return instrument(cl, b, off, len, null);
+
+        String[] name = new String[1];
+        long start = Telemetry.now();
+        byte[] instb = instrument(cl, b, off, len, name);
+
+        Telemetry.record(cl, name[0], len, instb == b ? -1 : instb.length,
+                         Telemetry.now() - start);
+        return instb;
+    }
+
+    /* If name is not null, the class name is returned in name[0] */
+    private static byte[] instrument(ClassLoader cl, byte[] b, int off, 
+                                     int len, String[] name) 
+    {
         try {
-            ClassReader cr = new ClassReader(b, off, len);
-
-            EmptyClassVisitor empty   = new EmptyClassVisitor();
-            FilterContextAdapter ftc  = new FilterContextAdapter(empty);
-            SqlContextAdapter sqc     = new SqlContextAdapter(ftc);
-            ServletContextAdapter svc = new ServletContextAdapter(sqc);
-            XssContextAdapter xsa     = new XssContextAdapter(svc);
-
-            cr.accept(xsa, ClassReader.SKIP_CODE + ClassReader.SKIP_DEBUG +
-                           ClassReader.SKIP_FRAMES);
-            if (!xsa.instrumented() && !sqc.instrumented() 
-                    && !svc.instrumented() && !ftc.instrumented())
-                return copyOf(b, off, len);
-           
-            ClassWriter cw = new ClassWriter(cr, 0);
-            ClassVisitor cv = cw;
-
-            if (ftc.instrumented())
-                cv = new FilterAdapter(cv, ftc);
-            if (sqc.instrumented())
-                cv = new SqlAdapter(cv, sqc);
-            if (svc.instrumented())
-                cv = new ServletAdapter(cv, svc);
-            if (xsa.instrumented())
-                cv = new XssAdapter(cv, xsa);
-            cr.accept(cv, 0);
-            return cw.toByteArray();
+            ClassScanner cs = new ClassScanner(b, off, len);
+            Hierarchy.define(cl, cs.className(), cs.superName(),
+                             cs.interfaces());
+            if (name != null)
+                name[0] = cs.className();
+
+            Warmup.State ws = null;
+            if (Warmup.enabled())
+                ws = Warmup.start(cl);
+
+            if (cs.isExcluded(cl) || !cs.mayInstrument(cl))
+                return b;
+
+            byte[] instb = null;
+            if (ws != null)
+                instb = ws.take(cs.className(), b, off, len);
+            if (instb != null)
+                Telemetry.count(Telemetry.WARMUP_HITS);
+            else
+                instb = transform(cl, cs, b, off, len);
+
+            if (instb == UNCHANGED)
+                return b;
+            return instb;
         } catch (Throwable th) {
             Log.error(th);
-            return copyOf(b, off, len);
+            Telemetry.count(Telemetry.ERRORS);
+            return b;
         }
     }
 
+    /** Return the offset of a class returned by instrument(cl, b, off, len) 
+     */
+    public static int offset(byte[] instb, byte[] b, int off) {
+        return instb == b ? off : 0;
+    }
+
+    /** Return the length of a class returned by instrument(cl, b, off, len) 
+     */
+    public static int length(byte[] instb, byte[] b, int len) {
+        return instb == b ? len : instb.length;
+    }
+
     /* XXX We assume (as do Sun's native classes), that offset 
      * is equal to b.position(). and len is b.remaining(). If we're
      * wrong, log it and break out. This assumption holds in 
      * JDK1.5/1.6, and does not occur in JDK 1.4.
+     *
+     * Returns the instrumented class, or null if bb is left unchanged. Heap
+     * buffers are scanned in place, and direct buffers are copied into a
+     * per-thread scratch buffer.
      */
     //[ifJava5+]
-    public static ByteBuffer instrument(ByteBuffer bb, int off, int len) {
-        try {
+    public static byte[] instrument(ClassLoader cl, ByteBuffer bb, 
+                                    int off, int len) 
+    {
+        byte[] b = null;
 
+        try {
             if (off != bb.position() || len != bb.remaining()) 
                 throw new Throwable("Unexpected ByteBuffer");
 
-            byte[] b = new byte[len];
-            bb.duplicate().get(b, 0, len); 
+            if (bb.hasArray()) {
+                b = bb.array();
+                off += bb.arrayOffset();
+                byte[] instb = instrument(cl, b, off, len);
+                return instb == b ? null : instb;
+            }
 
-            byte[] instb = instrument(b, 0, len);
-            if (b == instb)
-                return bb; 
+            b = (byte[]) scratch.get();
+            scratch.set(null);
+            if (b == null || b.length < len)
+                b = new byte[Math.max(len, 4096)];
 
-            ByteBuffer ret = ByteBuffer.allocateDirect(instb.length);
-            ret.put(instb);
-            ret.flip();
-            return ret;
+            bb.duplicate().get(b, 0, len); 
+            byte[] instb = instrument(cl, b, 0, len);
+            return instb == b ? null : instb;
         } catch (Throwable th) {
             Log.error(th);
-            return bb;
+            return null;
+        } finally {
+            if (b != null && !bb.hasArray())
+                scratch.set(b);
         }
     }
     //[fiJava5+]
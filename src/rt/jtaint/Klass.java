@@ -29,10 +29,12 @@ package jtaint;
  *  the class in question (for example, when instrumenting 
  *  java.servlet.http.HttpUtils, where we instrument only static methods).
  *  In other cases, for safety reasons, we must instrument arbitrary classes
- *  that may be subclassing a security-relevant class, determining only at
- *  runtime if they are truly a subclass or just a false positive. We can't
- *  tell at load time as the JVM may not have loaded their parent class 
- *  before the defineClass method is called in java.lang.ClassLoader.
+ *  that may be subclassing a security-relevant class. The JVM may not have 
+ *  loaded their parent class before the defineClass method is called in 
+ *  java.lang.ClassLoader, so their supertypes are resolved from class files
+ *  instead (see Hierarchy). Classes that are known not to be subclasses are
+ *  left alone; when a supertype cannot be found, we fall back to determining
+ *  at runtime if the class is truly a subclass or just a false positive.
  */
  
 final class Klass
@@ -41,11 +41,10 @@ public final class MySqlValidator extends SqlValidator
     public int parseMYBlockComment(String s, int offset) 
     {
         int len = s.length();
-        Taint t = s.@internal@taint();
         boolean isCommand = false;
 
         if (offset < len - 2 && s.charAt(offset+2) == '!') {
-            if (t.get(offset+2))
+            if (s.@internal@isTaintedAt(offset+2))
                 SqlUtil.abortQuery(s, "Tainted block comment command");
             isCommand = true;
             offset++;
@@ -57,11 +56,11 @@ public final class MySqlValidator extends SqlValidator
         while (++offset < len) {
             char c = s.charAt(offset);
 
-            if (isCommand && t.get(offset))
+            if (isCommand && s.@internal@isTaintedAt(offset))
                 SqlUtil.abortQuery(s, "Tainted character in comment command");
 
             if (c == '*' && offset != len-1 && s.charAt(offset + 1) == '/') {
-                if (t.get(offset) || t.get(offset + 1)) 
+                if (SqlParseUtil.isTainted(s, offset, offset + 2)) 
                     SqlUtil.abortQuery(s, "Tainted comment end (*/)");
                 return offset + 1;
             }
@@ -74,16 +73,14 @@ public final class MySqlValidator extends SqlValidator
     public void validateSqlQuery(String s)
     {
         int len;
-        Taint t;
         if (!s.@internal@isTainted()) return;
 
-        t = s.@internal@taint();
         len = s.length();
 
         for (int i = 0; i < len; i++) {
             char c = s.charAt(i);
 
-            if (t.get(i)) {
+            if (s.@internal@isTaintedAt(i)) {
                 i = SqlParseUtil.parseTaintedValue(s, i, this);
                 continue;
             }
@@ -105,7 +102,7 @@ public final class MySqlValidator extends SqlValidator
                 case '/':
                     /* Possibly a block comment */
                     if (i < len - 1 && s.charAt(i+1) == '*') {
-                        if (t.get(i+1)) 
+                        if (s.@internal@isTaintedAt(i+1)) 
                             SqlUtil.abortQuery(s, "Tainted block comment");
 
                         i = parseMYBlockComment(s, i);
@@ -44,7 +44,6 @@ public final class OracleSqlValidator extends SqlValidator
 
     public int parseOracleQuoteDelimitedString(String s, int offset) {
         int len = s.length();
-        Taint t = s.@internal@taint();
 
         if (offset == len - 1) {
             SqlUtil.parseError(s, "Unterminated quote delimited string");
@@ -54,7 +53,7 @@ public final class OracleSqlValidator extends SqlValidator
         char quoteDelim = s.charAt(++offset);
         int origQuoteDelimOffset = offset;
 
-        if (t.get(offset))
+        if (s.@internal@isTaintedAt(offset))
             SqlUtil.abortQuery(s,"Tainted delimiter in quote delimited string");
 
         if (quoteDelim == ' ' || quoteDelim == '\t' || quoteDelim == '\n') {
@@ -84,7 +83,7 @@ public final class OracleSqlValidator extends SqlValidator
             char c = s.charAt(offset);
 
             if (c == '\0') {
-                if (t.get(offset)) 
+                if (s.@internal@isTaintedAt(offset)) 
                     SqlUtil.abortQuery(s, "Tainted null byte in string");
                 Log.warn(new Throwable("Null byte in SQL Query: " + s));
             }
@@ -92,7 +91,7 @@ public final class OracleSqlValidator extends SqlValidator
             if (c != '\'' || s.charAt(offset - 1) != quoteDelim
                     || offset == origQuoteDelimOffset + 1)
                 continue;
-            if (t.get(offset) || t.get(offset - 1))
+            if (SqlParseUtil.isTainted(s, offset - 1, offset + 1))
                 SqlUtil.abortQuery(s, "Tainted character terminates quote "
                                       + "delimited string");
             return offset;
@@ -104,12 +103,11 @@ public final class OracleSqlValidator extends SqlValidator
     
     public int parseOracleString(String s, int offset)
     {
-        Taint t = s.@internal@taint();
 
         /* Check for quote delimited string */
         if (quoteDelimitedStrings && offset >= 1 
                && (s.charAt(offset-1) == 'q' || s.charAt(offset-1) == 'Q')) {
-            if (t.get(offset-1)) 
+            if (s.@internal@isTaintedAt(offset-1)) 
                 SqlUtil.abortQuery(s, "Tainted quote delimited string");
             else if (offset == 1 || isSqlWhitespace(s.charAt(offset - 2))
                    || isSqlOperator(s.charAt(offset - 2))
@@ -124,10 +122,9 @@ public final class OracleSqlValidator extends SqlValidator
     public int parseOracleIdentifier(String s, int offset)
     {
         int len = s.length();
-        Taint t = s.@internal@taint();
 
         while (++offset < len) {
-            if (t.get(offset))
+            if (s.@internal@isTaintedAt(offset))
                 SqlUtil.abortQuery(s, "Tainted identifier");
             else if (s.charAt(offset) == '"')
                 return offset;
@@ -171,9 +168,8 @@ public final class OracleSqlValidator extends SqlValidator
          * is valid.
          */
         int suffixOffset = -1;
-        Taint t = s.@internal@taint();
 
-        for (int i = offset + 1; i < len && t.get(i); i++) {
+        for (int i = offset + 1; i < len && s.@internal@isTaintedAt(i); i++) {
             if (s.charAt(i) == 'f' || s.charAt(i) == 'F' ||
                     s.charAt(i) == 'd' || s.charAt(i) == 'D') {
                 suffixOffset = i;
@@ -184,7 +180,7 @@ public final class OracleSqlValidator extends SqlValidator
         if (suffixOffset < 0)
             return SqlParseUtil.parseTaintedValue(s, offset, this);
 
-        if (suffixOffset < len - 1 && t.get(suffixOffset + 1))
+        if (suffixOffset < len - 1 && s.@internal@isTaintedAt(suffixOffset + 1))
             SqlUtil.abortQuery(s, "Tainted identifier, operator, or keyword"); 
 
         /* Ensure that the number between offset and suffixOffset is a safe
@@ -199,13 +195,12 @@ public final class OracleSqlValidator extends SqlValidator
     {
         if (!s.@internal@isTainted()) return;
 
-        Taint t = s.@internal@taint();
         int len = s.length();
 
         for (int i = 0; i < len; i++) {
             char c = s.charAt(i);
 
-            if (t.get(i)) {
+            if (s.@internal@isTaintedAt(i)) {
                 i = parseOracleTaintedValue(s, i, binaryFloatingPointNumbers);
                 continue;
             }
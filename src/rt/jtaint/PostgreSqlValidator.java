@@ -55,13 +55,12 @@ public final class PostgreSqlValidator extends SqlValidator
     public int parsePGString(String s, int offset, boolean scStrings) 
     {
         int len = s.length();
-        Taint t = s.@internal@taint();
         boolean isStandardString = scStrings;
 
         /* Check for 'Escape string' syntax */
         if (isStandardString && offset >= 1 
                && (s.charAt(offset-1) == 'e' || s.charAt(offset-1) == 'E')) {
-            if (t.get(offset-1)) 
+            if (s.@internal@isTaintedAt(offset-1)) 
                 SqlUtil.abortQuery(s, "Tainted escape string specifier");
             else if (offset == 1 || isSqlWhitespace(s.charAt(offset - 2))
                    || isSqlOperator(s.charAt(offset - 2))
@@ -102,7 +101,6 @@ public final class PostgreSqlValidator extends SqlValidator
 
     public int parsePGDollarString(String s, int offset) 
     {
-        Taint t = s.@internal@taint();
         int len = s.length();
         int tagLen, i;
 
@@ -114,13 +112,13 @@ public final class PostgreSqlValidator extends SqlValidator
         for (i = offset + tagLen; i < len; i++)
         {
             if (s.charAt(i) == '\0') {
-                if (t.get(i)) 
+                if (s.@internal@isTaintedAt(i)) 
                     SqlUtil.abortQuery(s, "Tainted null byte in dollar string");
                 Log.warn(new Throwable("Null byte in SQL Query: " + s));
             }
 
             if (s.charAt(i) == '$' && subStringEqual(s, offset, i, tagLen)) {
-                if (s.substring(i, i + tagLen).@internal@isTainted()) {
+                if (SqlParseUtil.isTainted(s, i, i + tagLen)) {
                     SqlUtil.abortQuery(s, 
                             "Tainted character terminates dollar string");
                 }
@@ -135,16 +133,14 @@ public final class PostgreSqlValidator extends SqlValidator
     public void validateSqlQuery(String s)
     {
         int len;
-        Taint t;
         if (!s.@internal@isTainted()) return;
 
-        t = s.@internal@taint();
         len = s.length();
 
         for (int i = 0; i < len; i++) {
             char c = s.charAt(i);
 
-            if (t.get(i)) {
+            if (s.@internal@isTaintedAt(i)) {
                 i = SqlParseUtil.parseTaintedValue(s, i, this);
                 continue;
             }
@@ -186,7 +182,7 @@ public final class PostgreSqlValidator extends SqlValidator
                                 && (s.charAt(i+1) == '$' 
                                 || isPGDollarStart(s.charAt(i+1)))) {
                         for (int d = i + 1; d < len; d++) {
-                            if (t.get(d)) {
+                            if (s.@internal@isTaintedAt(d)) {
                                 unsafe = true;
                             } else if (s.charAt(d) == '$') {
                                 found = true;
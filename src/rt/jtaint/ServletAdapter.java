@@ -15,7 +15,10 @@
  */
 package jtaint;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -26,8 +29,6 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 
-import org.objectweb.asm.commons.SimpleAdviceAdapter;
-
 final class ServletAdapter extends ClassAdapter implements Opcodes
 {
     private final Map instrumentedMethods;
@@ -39,7 +40,15 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
         super(cv);
         instrumentedMethods = sca.instrumentedMethods();
         Set s = new HashSet(instrumentedMethods.values());
-        servletKlasses = (Klass[]) s.toArray(new Klass[s.size()]);
+        List l = new ArrayList();
+
+        /* Exact Klasses are never checked at runtime */
+        for (Iterator i = s.iterator(); i.hasNext(); ) {
+            Klass k = (Klass) i.next();
+            if (!k.isExact())
+                l.add(k);
+        }
+        servletKlasses = (Klass[]) l.toArray(new Klass[l.size()]);
     }
 
     public void visit(int version, int access, String name, String signature, 
@@ -57,10 +66,6 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
         MethodVisitor mv = cv.visitMethod(access, name, desc, signature, 
                                           exceptions);
 
-        if ("<init>".equals(name)) 
-            return new CheckClassInitAdapter(servletKlasses, mv, 
-                                             className, access, name, desc);
-
         Klass k = (Klass) instrumentedMethods.get(new MethodDecl(access, name, 
                                                                  desc));
 
@@ -85,20 +90,141 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
     }
 
 
+    /* Push true if the object on top of the stack is assignment compatible
+     * with Klass k. k must be one of servletKlasses.
+     */
+    private void checkKlass(MethodVisitor mv, Klass k) {
+        int i = 0;
+        while (servletKlasses[i] != k)
+            i++;
+
+        mv.visitIntInsn(BIPUSH, i);
+        mv.visitMethodInsn(INVOKESTATIC, className,
+                           ByteCodeUtil.internalName("isKlass"), 
+                           "(Ljava/lang/Object;I)Z");
+    }
+
+    /* Servlet type checks are performed once per runtime class, rather than
+     * in every constructor, and cached in a static field holding the
+     * result for the last class seen. This is a single class for nearly all
+     * instrumented classes. When several subclasses alternate, the result
+     * is found in the ClassUtil memo, keyed on the runtime class and on the
+     * names array of this class, which is only built once. Equivalent to
+     * the following Java code:
+     *
+     * private static ClassTypes types;
+     * private static String[] klassNames;
+     *
+     * private static boolean isKlass(Object o, int i) {
+     *     Class c = o.getClass();
+     *     ClassTypes t = types;
+     *     if (t == null || !t.isType(c)) {
+     *         String[] names = klassNames;
+     *         if (names == null) {
+     *             names = new String[] { servletKlasses[0].name(), ..., 
+     *                                    servletKlasses[n].name() };
+     *             klassNames = names;
+     *         }
+     *         t = jtaint.ClassUtil.types(c, names);
+     *         types = t;
+     *     }
+     *     return t.is(i);
+     * }
+     * 
+     * ClassTypes is immutable, so a race on types at worst repeats the
+     * (memoized) ClassUtil lookup. A race on klassNames at worst adds a 
+     * second memo entry for the runtime class.
+     */
+
+    private void addIsKlassMethod() {
+        String typesField = ByteCodeUtil.internalName("types");
+        String namesField = ByteCodeUtil.internalName("klassNames");
+        cv.visitField(ACC_PRIVATE + ACC_STATIC + ACC_TRANSIENT, typesField, 
+                      "Ljtaint/ClassTypes;", null, null).visitEnd();
+        cv.visitField(ACC_PRIVATE + ACC_STATIC + ACC_TRANSIENT, namesField, 
+                      "[Ljava/lang/String;", null, null).visitEnd();
+
+        MethodVisitor mv = cv.visitMethod(ACC_PRIVATE + ACC_STATIC,
+                                          ByteCodeUtil.internalName("isKlass"),
+                                          "(Ljava/lang/Object;I)Z", null, 
+                                          null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass",
+                           "()Ljava/lang/Class;");
+        mv.visitVarInsn(ASTORE, 2);
+        mv.visitFieldInsn(GETSTATIC, className, typesField, 
+                          "Ljtaint/ClassTypes;");
+        mv.visitVarInsn(ASTORE, 3);
+
+        Label miss = new Label(), hit = new Label(), haveNames = new Label();
+        mv.visitVarInsn(ALOAD, 3);
+        mv.visitJumpInsn(IFNULL, miss);
+        mv.visitVarInsn(ALOAD, 3);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "jtaint/ClassTypes", "isType",
+                           "(Ljava/lang/Class;)Z");
+        mv.visitJumpInsn(IFNE, hit);
+
+        mv.visitLabel(miss);
+        if (version == V1_6)
+            mv.visitFrame(F_APPEND, 2, new Object[] { "java/lang/Class", 
+                          "jtaint/ClassTypes" }, 0, null);
+        mv.visitFieldInsn(GETSTATIC, className, namesField, 
+                          "[Ljava/lang/String;");
+        mv.visitInsn(DUP);
+        mv.visitVarInsn(ASTORE, 4);
+        mv.visitJumpInsn(IFNONNULL, haveNames);
+
+        mv.visitIntInsn(BIPUSH, servletKlasses.length);
+        mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
+        for (int i = 0; i < servletKlasses.length; i++) {
+            mv.visitInsn(DUP);
+            mv.visitIntInsn(BIPUSH, i);
+            mv.visitLdcInsn(servletKlasses[i].name());
+            mv.visitInsn(AASTORE);
+        }
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(PUTSTATIC, className, namesField,
+                          "[Ljava/lang/String;");
+        mv.visitVarInsn(ASTORE, 4);
+
+        mv.visitLabel(haveNames);
+        if (version == V1_6)
+            mv.visitFrame(F_APPEND, 1, new Object[] { "[Ljava/lang/String;" },
+                          0, null);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitVarInsn(ALOAD, 4);
+        mv.visitMethodInsn(INVOKESTATIC, "jtaint/ClassUtil", "types",
+                   "(Ljava/lang/Class;[Ljava/lang/String;)Ljtaint/ClassTypes;");
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(PUTSTATIC, className, typesField, 
+                          "Ljtaint/ClassTypes;");
+        mv.visitVarInsn(ASTORE, 3);
+
+        mv.visitLabel(hit);
+        if (version == V1_6)
+            mv.visitFrame(F_CHOP, 1, null, 0, null);
+        mv.visitVarInsn(ALOAD, 3);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "jtaint/ClassTypes", "is", "(I)Z");
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(4, 5);
+        mv.visitEnd();
+    }
+
     public void visitEnd() {
-        Klass[] k = servletKlasses;
-        for (int i = 0; i < k.length; i++) 
-            cv.visitField(ACC_PRIVATE + ACC_FINAL + ACC_TRANSIENT,
-                          ByteCodeUtil.internalName("is" + k[i].simpleName()),
-                          "Z", null, null).visitEnd();
+        if (servletKlasses.length != 0)
+            addIsKlassMethod();
         cv.visitEnd();
     }
 
     /* Equivalent to the following Java code:
-     * (Where T is String, Hashtable, StringBuffer, etc)
+     * (Where T is String, Hashtable, StringBuffer, etc, and K is the Klass
+     * declaring fn)
      * public T fn(arg1...argN) {
      *     T retval = realfn(arg1...argN);
-     *     if (isServlet)
+     *     if (isKlass(this, K))
      *         retval = jtaint.StringUtil.toTainted(retval);
      *     return retval;
      * }
@@ -150,8 +276,7 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
 
         /* Now taint the return type, if we need to */
         mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, 
-                         ByteCodeUtil.internalName("is"+k.simpleName()), "Z");
+        checkKlass(mv, k);
         Label l0 = new Label();
         mv.visitJumpInsn(IFEQ, l0);
         mv.visitMethodInsn(INVOKESTATIC, "jtaint/StringUtil",
@@ -162,22 +287,22 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
             mv.visitFrame(F_SAME1, 0, null, 1, 
                           new Object[] { ret.getInternalName() });
         mv.visitInsn(ARETURN);
-        mv.visitMaxs(Math.max(l, 2), l);
+        mv.visitMaxs(Math.max(l, 3), l);
         mv.visitEnd();
     }
 
     /* Equivalent to the following Java code
      * public void service(ServletRequest req, ServletResponse res) {
      *     try {
-     *         if (isServlet)
+     *         if (isKlass(this, Servlet))
      *             preService(req.getParameterMap(), req.getRemoteHost(),
      *                        req.getRemoteAddr());
      *         real_service(req, res);
-     *         if (isServlet)
+     *         if (isKlass(this, Servlet))
      *             postService();
      *         return;
      *     } catch (Throwable th) {
-     *         if (isServlet)
+     *         if (isKlass(this, Servlet))
      *             postService();
      *         throw th;
      *     }
@@ -194,9 +319,7 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
         mv.visitLabel(start);
 
         mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, 
-                          ByteCodeUtil.internalName("is" + k.simpleName()), 
-                          "Z");
+        checkKlass(mv, k);
         Label l0 = new Label();
         mv.visitJumpInsn(IFEQ, l0);
 
@@ -230,9 +353,7 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
                            ByteCodeUtil.internalName(name), desc);
 
         mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, 
-                          ByteCodeUtil.internalName("is" + k.simpleName()), 
-                          "Z");
+        checkKlass(mv, k);
         Label l1 = new Label();
         mv.visitJumpInsn(IFEQ, l1);
 
@@ -250,9 +371,7 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
                           new Object[] { "java/lang/Throwable" });
 
         mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, 
-                          ByteCodeUtil.internalName("is" + k.simpleName()), 
-                          "Z");
+        checkKlass(mv, k);
         Label l2 = new Label();
         mv.visitJumpInsn(IFEQ, l2);
         mv.visitMethodInsn(INVOKESTATIC, "jtaint/HttpUtil",
@@ -271,7 +390,7 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
      *
      * public String getPathTranslated() {
      *     String s = realGetPathTranslated();
-     *     if (isHttpServletRequest)
+     *     if (isKlass(this, HttpServletRequest))
      *        s = jtaint.HttpUtil.getPathTranslated(s, this);
      *     return s;
      * }
@@ -285,9 +404,7 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
                            ByteCodeUtil.internalName("getPathTranslated"),
                            "()Ljava/lang/String;");
         mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, 
-                          ByteCodeUtil.internalName("isHttpServletRequest"), 
-                          "Z");
+        checkKlass(mv, ServletContextAdapter.HTTPSERVLETREQUEST);
         Label l0 = new Label();
         mv.visitJumpInsn(IFEQ, l0);
 
@@ -301,7 +418,7 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
             mv.visitFrame(F_SAME1, 0, null, 1, 
                           new Object[] { "java/lang/String" });
         mv.visitInsn(ARETURN);
-        mv.visitMaxs(2, 1);
+        mv.visitMaxs(3, 1);
         mv.visitEnd();
     }
 
@@ -353,66 +470,4 @@ final class ServletAdapter extends ClassAdapter implements Opcodes
         mv.visitMaxs(Math.max(l, 3), l);
         mv.visitEnd();
     }
-
-    private static final class CheckClassInitAdapter extends SimpleAdviceAdapter
-    {
-        private final Klass[] k;
-
-        public CheckClassInitAdapter(Klass[] k, MethodVisitor mv, 
-                                     String owner, int access, String name, 
-                                     String desc) 
-        {
-            super(mv, owner, access, name, desc); 
-            this.k = k;
-        }
-
-        private void prologue() {
-            mv.visitVarInsn(ALOAD, 0);
-            mv.visitInsn(DUP);
-            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object",
-                               "getClass", "()Ljava/lang/Class;");
-            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Class",
-                               "getClassLoader", 
-                               "()Ljava/lang/ClassLoader;");
-        }
-
-        /* Very important: JVM Specification 5.3.5 guarantees that 
-         * for a given class C, all superclasses and superinterfaces of
-         * C are loaded before C is.
-         */
-        
-        private void checkAssignable(Klass k) {
-            mv.visitInsn(DUP2);
-            mv.visitLdcInsn(k.name());
-            mv.visitMethodInsn(INVOKESTATIC, "jtaint/ClassUtil",
-                               "isInstance", 
-                               "(Ljava/lang/Object;Ljava/lang/ClassLoader;Ljava/lang/String;)Z");
-            mv.visitVarInsn(ALOAD, 0);
-            mv.visitInsn(SWAP);
-            mv.visitFieldInsn(PUTFIELD, className, 
-                    ByteCodeUtil.internalName("is" + k.simpleName()), "Z");
-        }
-
-        public void onMethodEnter() {
-            if (!superInitialized || k.length == 0) return;
-
-            prologue();
-
-            for (int i = 0; i < k.length; i++) 
-                    checkAssignable(k[i]);
-            mv.visitInsn(POP2);
-        }
-
-        /* When instrumenting a constructor, we are not guaranteed that the
-         * stack will be empty after the call to super(). Thus, up to nStack
-         * elements may be present on the stack when our instrumentation
-         * code is invoked, so we adjust the total in visitMaxs() accordingly.
-         */
-        public void visitMaxs(int nStack, int nLocals) {
-            if (!superInitialized || k.length == 0)
-                mv.visitMaxs(nStack, nLocals);
-            else
-                mv.visitMaxs(nStack + 5, nLocals);
-        }
-    }
 }
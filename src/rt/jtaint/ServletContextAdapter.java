@@ -32,7 +32,7 @@ final class ServletContextAdapter extends GenericContextAdapter
     public  static final Klass HTTPSERVLETREQUEST;
     public  static final Klass COOKIE;
     public  static final Klass HTTPUTILS;
-    private static final Map   methods; /* Map Method -> Klass */
+            static final Map   methods; /* Map Method -> Klass */
 
     static {
         SERVLET            = new Klass("javax.servlet.Servlet");
@@ -144,8 +144,8 @@ final class ServletContextAdapter extends GenericContextAdapter
         methods = h;
     }
 
-    public ServletContextAdapter(ClassVisitor cv) {
-        super(cv, methods);
+    public ServletContextAdapter(ClassVisitor cv, ClassLoader cl) {
+        super(cv, methods, cl);
     }
 }
 
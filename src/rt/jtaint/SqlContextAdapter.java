@@ -28,7 +28,7 @@ final class SqlContextAdapter extends GenericContextAdapter
     public  static final Klass CONNECTION;
     public  static final Klass STATEMENT;
     public  static final Klass ROWSET;
-    private static final Map methods;
+            static final Map   methods;
 
     static {
         CONNECTION = new Klass("java.sql.Connection");
@@ -95,7 +95,7 @@ final class SqlContextAdapter extends GenericContextAdapter
         methods = h;
     }
 
-    public SqlContextAdapter(ClassVisitor cv) {
-        super(cv, methods);
+    public SqlContextAdapter(ClassVisitor cv, ClassLoader cl) {
+        super(cv, methods, cl);
     }
 }
@@ -17,6 +17,12 @@ package jtaint;
 
 public final class SqlParseUtil
 {
+    /** Return true if any character of s in [begin, end) is tainted */
+    static boolean isTainted(String s, int begin, int end) {
+        int i = s.@internal@nextTaintedIndex(begin);
+        return i >= 0 && i < end;
+    }
+
     /** Parse a block comment. Nesting is supported. Tainted data is allowed
      * within the comment, but may neither begin nor end a block comment or
      * nested block comment.
@@ -25,9 +31,8 @@ public final class SqlParseUtil
     {
         int len = s.length(),
             level = 1;
-        Taint t = s.@internal@taint();
 
-        if (t.get(offset) || t.get(offset+1))
+        if (isTainted(s, offset, offset + 2))
             SqlUtil.abortQuery(s, "Tainted comment begin (/*)");
 
         /* Skip leading '/*' */
@@ -37,13 +42,13 @@ public final class SqlParseUtil
             char c = s.charAt(offset);
 
             if (c == '/' && offset != len-1 && s.charAt(offset + 1) == '*') {
-                if (t.get(offset) || t.get(offset+1))
+                if (isTainted(s, offset, offset + 2))
                     SqlUtil.abortQuery(s, "Tainted comment begin (/*)");
                 offset++;
                 level++;
             } else if (c == '*' && offset != len-1 
                        && s.charAt(offset + 1) == '/') {
-                if (t.get(offset) || t.get(offset + 1))
+                if (isTainted(s, offset, offset + 2))
                     SqlUtil.abortQuery(s, "Tainted comment end (*/)");
                 offset++;
                 level--;
@@ -61,9 +66,8 @@ public final class SqlParseUtil
     public static int parseBlockComment(String s, int offset) 
     {
         int len = s.length();
-        Taint t = s.@internal@taint();
 
-        if (t.get(offset) || t.get(offset+1))
+        if (isTainted(s, offset, offset + 2))
             SqlUtil.abortQuery(s, "Tainted comment begin (/*)");
 
         /* Skip leading '/*' */
@@ -73,7 +77,7 @@ public final class SqlParseUtil
             char c = s.charAt(offset);
 
             if (c == '*' && offset != len-1 && s.charAt(offset + 1) == '/') {
-                if (t.get(offset) || t.get(offset + 1)) 
+                if (isTainted(s, offset, offset + 2)) 
                     SqlUtil.abortQuery(s, "Tainted comment end (*/)");
                 return offset + 1;
             }
@@ -90,12 +94,10 @@ public final class SqlParseUtil
                                        String beginComment) 
     {
         int len = s.length(), cmtlen = beginComment.length();
-        Taint t = s.@internal@taint();
 
-        for (int i = 0; i < cmtlen; i++)
-            if (t.get(offset + i))
-                SqlUtil.abortQuery(s, "Tainted line comment begin(" + 
-                                   beginComment + ")");
+        if (isTainted(s, offset, offset + cmtlen))
+            SqlUtil.abortQuery(s, "Tainted line comment begin(" + 
+                               beginComment + ")");
 
         /* Skip leading begin comment characters */
         offset += cmtlen - 1;
@@ -105,7 +107,7 @@ public final class SqlParseUtil
 
             if (c != '\r' && c != '\n') 
                 continue;
-            else if (!t.get(offset)) 
+            else if (!s.@internal@isTaintedAt(offset)) 
                 return offset;
             else 
                 SqlUtil.abortQuery(s, "Tainted newline ends line comment");
@@ -118,14 +120,13 @@ public final class SqlParseUtil
     public static int parseStringLiteral(String s, int offset, boolean escapes)
     {
         int len = s.length();
-        Taint t = s.@internal@taint();
         char quoteChar = s.charAt(offset);
 
         while (++offset < len) {
             char c = s.charAt(offset);
 
             if (c == '\0') {
-                if (t.get(offset)) 
+                if (s.@internal@isTaintedAt(offset)) 
                     SqlUtil.abortQuery(s, "Tainted null byte in string");
                 Log.warn(new Throwable("Null byte in SQL Query: " + s));
             }
@@ -134,24 +135,24 @@ public final class SqlParseUtil
                 continue;
 
             if (c == quoteChar) {
-                if (t.get(offset)) {
+                if (s.@internal@isTaintedAt(offset)) {
                     /* Two single quotes interpreted as a literal quote */
                     if (offset < len-1 && s.charAt(offset+1) == quoteChar
-                            && t.get(offset+1))
+                            && s.@internal@isTaintedAt(offset+1))
                         offset++;
                     else
                         SqlUtil.abortQuery(s, "Unsafe tainted quote in string");
                 } else {
                     if (offset == len-1 || s.charAt(offset+1) != quoteChar)
                         return offset;
-                    if (t.get(offset+1))
+                    if (s.@internal@isTaintedAt(offset+1))
                         SqlUtil.abortQuery(s, "Unsafe Tainted quote in string");
                     else
                         offset++;
                 }
             } else /* c == '\\' */ {
-                if (t.get(offset)) {
-                    if (offset < len-1 && t.get(offset+1))
+                if (s.@internal@isTaintedAt(offset)) {
+                    if (offset < len-1 && s.@internal@isTaintedAt(offset+1))
                         offset++;
                     else
                         SqlUtil.abortQuery(s, "Unsafe tainted backslash");
@@ -167,13 +168,12 @@ public final class SqlParseUtil
     public static int parseQuotedIdentifier(String s, int offset)
     {
         int len = s.length();
-        Taint t = s.@internal@taint();
         char quoteChar = s.charAt(offset);
 
         while (++offset < len) {
             char c = s.charAt(offset);
 
-            if (t.get(offset))
+            if (s.@internal@isTaintedAt(offset))
                 SqlUtil.abortQuery(s, "Tainted identifier");
 
             /* A string ends with a double-quote. A literal double quote
@@ -187,7 +187,7 @@ public final class SqlParseUtil
             if (offset == len - 1 || s.charAt(offset+1) != quoteChar) 
                 return offset;
 
-            if (t.get(offset+1)) 
+            if (s.@internal@isTaintedAt(offset+1)) 
                 SqlUtil.abortQuery(s, "Tainted identifier");
             else /* "" is a literal " */
                 offset++;
@@ -242,9 +242,10 @@ public final class SqlParseUtil
                   ST_EXPONENT_VALID = 6;
 
         int state = ST_INITIAL,
-            len = s.length();
+            len = s.length(),
+            /* Characters in [offset, end) are all tainted */
+            end = s.@internal@nextUntaintedIndex(offset);
         boolean fail = false;
-        Taint t = s.@internal@taint();
 
         /* Ensure that a numeric literal found at the current offset
          * will actually be parsed as a numeric literal.
@@ -265,9 +266,8 @@ public final class SqlParseUtil
                      && s.regionMatches(true, offset, "false", 0, 5))
                 matchLen = 5;
 
-            for (int i = 0; i < matchLen; i++)
-                if (!t.get(offset + i))
-                    SqlUtil.abortQuery(s, "Partially tainted boolean constant");
+            if (matchLen != 0 && end < offset + matchLen)
+                SqlUtil.abortQuery(s, "Partially tainted boolean constant");
             if (matchLen != 0)
                 return offset + matchLen - 1;
         }
@@ -335,7 +335,9 @@ public final class SqlParseUtil
              default:
                     throw new RuntimeException("switch");
             } 
-        } while (++offset < len && t.get(offset) && !fail);
+        } while (++offset < len && (offset < end 
+                                    || s.@internal@isTaintedAt(offset)) 
+                 && !fail);
 
         if (state == ST_INITIAL || state == ST_INITIAL_POSTSIGN 
                 || state == ST_DECIMAL_INVALID || state == ST_EXPONENT_INVALID
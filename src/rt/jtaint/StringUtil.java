@@ -25,19 +25,38 @@ import java.util.Set;
 
 public final class StringUtil 
 {
+    /** Taint stored in a String to mark it as tainted end to end. Fully
+     * tainted Strings need no per-character taint, and are recognised by
+     * identity, so that queries and propagation can skip the Taint entirely.
+     */
+    private static final Taint FULL = new Taint();
+
+    /* Taints built by the propagation helpers below are private to the call,
+     * so they are handed over to the new String rather than copied again.
+     */
+
     private static String doSubstring(String orig, int beginIndex, int endIndex,
                                       String result)
     {
         Taint t;
+        int i;
 
          if (orig == result || !orig.@internal@isTainted() 
                  || result.@internal@isTainted())
              return result;
 
+         /* Untainted slice of a tainted String */
+         i = orig.@internal@nextTaintedIndex(beginIndex);
+         if (i < 0 || i >= endIndex)
+             return result;
+
+         if (orig.@internal@isFullyTainted())
+             return new String(result, FULL);
+
          t = orig.@internal@taint().subset(beginIndex, endIndex);
 
          if (t.isTainted())
-             return new String(result, t);
+             return new String(result, t, true);
          return result;
     }
 
@@ -60,10 +79,13 @@ public final class StringUtil
                 || result.@internal@isTainted())
             return result;
 
+        if (orig.@internal@isFullyTainted() && other.@internal@isFullyTainted())
+            return new String(result, FULL);
+
         t = TaintUtil.append(orig.@internal@taint(), orig.length(),
                              other.@internal@taint(), other.length());
         if (t != null)
-            return new String(result, t);
+            return new String(result, t, true);
         return result;
     }
 
@@ -77,24 +99,37 @@ public final class StringUtil
         }
     }
 
+    /** Propagate taint across the concatenation of s[0..len) into result.
+     * The result taint is created with its final length and each piece's
+     * taint is put at its offset in a single pass.
+     */
     public static String doConcat(String[] s, int len, String result) {
-        boolean tainted = false;
+        boolean tainted = false,
+                full = true;
+        int total = 0;
+
+        for (int i = 0; i < len; i++) {
+            int slen = s[i].length();
 
-        for (int i = 0; i < len; i++) 
-            if (s[i].@internal@isTainted()) 
+            if (s[i].@internal@isTainted())
                 tainted = true;
+            if (slen != 0 && !s[i].@internal@isFullyTainted())
+                full = false;
+            total += slen;
+        }
 
         if (!tainted) return result;
 
-        Taint t = null;
-        for (int slen = 0, i = 0; i < len; slen += s[i].length(), i++) 
-            t = TaintUtil.append(t,slen,s[i].@internal@taint(),s[i].length());
-
-        if (t.length() != result.length())
+        if (total != result.length())
             throw new RuntimeException("Taint length corruption");
-        if (t != null)
-            return new String(result, t);
-        return result;
+        if (full)
+            return new String(result, FULL);
+
+        Taint t = new Taint(false, total);
+        for (int off = 0, i = 0; i < len; off += s[i].length(), i++)
+            s[i].@internal@taintInto(t, off);
+
+        return new String(result, t, true);
     }
 
     public static String concat(String[] s, int len, String result) {
@@ -121,7 +156,7 @@ public final class StringUtil
                 t.clear(i);
 
         if (t.isTainted())
-            return new String(result, t);
+            return new String(result, t, true);
         return result;
     }
 
@@ -136,27 +171,27 @@ public final class StringUtil
         }
     }
 
+    /** String.trim removes all characters up to and including ' ' from 
+     * both ends, so the result is the slice of orig between the leading and
+     * trailing whitespace.
+     */
     private static String doTrim(String orig, String result)
     {
-        Taint old;
-        int begin, end;
+        int begin = 0, 
+            end = orig.length();
 
         if (orig == result || !orig.@internal@isTainted() 
                 || result.@internal@isTainted())
             return result;
 
-        old   = orig.@internal@taint();
-        begin = orig.indexOf(result);
-        end   = begin + result.length();
+        while (begin < end && orig.charAt(begin) <= ' ')
+            begin++;
+        while (end > begin && orig.charAt(end - 1) <= ' ')
+            end--;
 
-        if (result.length() > 0 && (begin != orig.lastIndexOf(result) 
-                    || begin < 0))
+        if (end - begin != result.length())
             throw new RuntimeException("trim ?");
-        Taint t = old.subset(begin, end);
-
-        if (t.isTainted())
-            return new String(result, t);
-        return result;
+        return doSubstring(orig, begin, end, result);
     }
 
     public static String trim(String orig, String result) 
@@ -169,6 +204,34 @@ public final class StringUtil
         }
     }
 
+    /** Return true if result is orig with each character mapped to exactly
+     * one character by the default case mapping, as it is for nearly all
+     * ASCII and Latin-1 input. Taint then carries over position by position,
+     * and the special casing walk below is unnecessary. Surrogates and 
+     * characters with locale-sensitive or multi-character mappings fail the
+     * check and take the slow path.
+     */
+    private static boolean isOneToOneCase(String orig, boolean isUpper, 
+                                          String result)
+    {
+        int len = orig.length();
+
+        if (len != result.length())
+            return false;
+
+        for (int i = 0; i < len; i++) {
+            char c = orig.charAt(i),
+                 r = result.charAt(i);
+
+            if (c == r)
+                continue;
+            if (r != (isUpper ? Character.toUpperCase(c) 
+                              : Character.toLowerCase(c)))
+                return false;
+        }
+        return true;
+    }
+
     /** Propagate taint across toLowerCase, toUpperCase calls. 
      * @see java.lang.String
      * @see java.lang.ConditionalSpecialCasing
@@ -192,10 +255,14 @@ public final class StringUtil
                 || result.@internal@isTainted())
             return result;
 
+        if (orig.@internal@isFullyTainted())
+            return new String(result, FULL);
 
-        t = new Taint(false, result.length());
         old = orig.@internal@taint();
+        if (isOneToOneCase(orig, isUpper, result))
+            return new String(result, old, true);
 
+        t = new Taint(false, result.length());
 
         for (i = 0, j = 0; i < olen && j < rlen; i += ocount, j += rcount) {
             int ochar = orig.codePointAt(i);
@@ -253,7 +320,7 @@ public final class StringUtil
             throw new RuntimeException("toXCase conversion error: Lang "
                     + locale.getLanguage() + " upper " + isUpper 
                     + " input " + orig + " ouput " + result);
-        return new String(result, t);
+        return new String(result, t, true);
     }
 
     public static String toUpperCase(String orig, Locale locale, String result)
@@ -294,7 +361,7 @@ public final class StringUtil
                 throw new RuntimeException("Unexpected toLowerCase - input: "
                         + orig + " output: " + result);
 
-            return new String(result, orig.@internal@taint());
+            return new String(result, orig.@internal@taint(), true);
         } catch (Throwable th) {
             Log.error(th);
             return result;
@@ -313,8 +380,14 @@ public final class StringUtil
                     || result.@internal@isTainted())
                 return result;
 
-            t = new Taint(false, result.length());
+            if (orig.@internal@isFullyTainted())
+                return new String(result, FULL);
+
             old = orig.@internal@taint();
+            if (isOneToOneCase(orig, true, result))
+                return new String(result, old, true);
+
+            t = new Taint(false, result.length());
 
             for (i = 0, j = 0; i < olen && j < rlen; i++, j += rcount) {
                 char ochar = orig.charAt(i),
@@ -342,7 +415,7 @@ public final class StringUtil
                 throw new RuntimeException("toUpper conversion error: Lang "
                         + locale.getLanguage() + " input " + orig + 
                         " ouput " + result);
-            return new String(result, t);
+            return new String(result, t, true);
         } catch (Throwable th) {
             Log.error(th);
             return result;
@@ -360,42 +433,102 @@ public final class StringUtil
      * instrumentation other than our pre-existing changes to StringBuilder.
      */
 
-    public static Taint stringToTaint(char[] v, int count) {
-        try {
-            if (v.length <= count)
-                throw new RuntimeException("stringToTaint called on untainted"
-                                           + "String: v.length:" +
-                                           v.length + " count:" + count);
-
-            char [] u = new char[v.length - count];
-            System.arraycopy(v, count, u, 0, v.length - count);
-            return new Taint(u, count);
-        } catch (Throwable th) {
-            Log.error(th);
+    /* The following helpers back String.taint, isFullyTainted, taintInto,
+     * isTaintedAt, nextTaintedIndex and nextUntaintedIndex. They query the Taint stored 
+     * in the String directly rather than the copy returned by String.taint().
+     * The stored Taint is null for untainted Strings, FULL for fully tainted
+     * Strings, and a private Taint of the String's length otherwise.
+     */
+
+    /** Return a copy of the stored taint t of a String with length count */
+    public static Taint stringToTaint(Taint t, int count) {
+        if (t == null)
             return null;
-        }
+        if (t == FULL)
+            return new Taint(true, count);
+        return (Taint) t.clone();
     }
 
-    public static char[] taintToString(String s, Taint t)
+    public static boolean isFullyTainted(Taint t) {
+        return t == FULL;
+    }
+
+    /** Put the stored taint t of a String with length count into dst at 
+     * offset. dst is expected to be untainted over that range.
+     */
+    public static void taintInto(Taint t, int count, Taint dst, int offset) {
+        if (t == FULL)
+            dst.putTainted(offset, count);
+        else if (t != null)
+            dst.put(offset, t);
+    }
+
+    private static void checkIndex(int count, int index) {
+        if (index < 0 || index >= count)
+            throw new StringIndexOutOfBoundsException(index);
+    }
+
+    public static boolean isTaintedAt(Taint t, int count, int index) {
+        checkIndex(count, index);
+        if (t == FULL)
+            return true;
+        return t != null && t.get(index);
+    }
+
+    /** Return the index of the first tainted character at or after
+     * fromIndex, or -1 if there is none.
+     */
+    public static int nextTaintedIndex(Taint t, int count, int fromIndex) {
+        if (fromIndex < 0)
+            fromIndex = 0;
+        if (t == null || fromIndex >= count)
+            return -1;
+        if (t == FULL)
+            return fromIndex;
+        return t.nextSetBit(fromIndex);
+    }
+
+    /** Return the index of the first untainted character at or after
+     * fromIndex, or the String length if there is none.
+     */
+    public static int nextUntaintedIndex(Taint t, int count, int fromIndex) {
+        if (fromIndex < 0)
+            fromIndex = 0;
+        if (fromIndex >= count)
+            return count;
+        if (t == null)
+            return fromIndex;
+        if (t == FULL)
+            return count;
+        return t.nextClearBit(fromIndex);
+    }
+
+    /** Return the Taint to be stored in a new String built from a String
+     * with taint old and length count, and the requested taint t. Strings
+     * share their Taint, so it must never be modified once stored: we keep a
+     * private copy of t rather than t itself, unless the caller has handed
+     * t over (shared). A fully tainted t is stored as FULL.
+     */
+    public static Taint stringTaint(Taint old, int count, Taint t, 
+                                    boolean shared)
     {
         try {
-            int slen = s.length(),
-                tlen = t.length(),
-                tclen = (tlen + 15)/16;
-
-            if (slen != tlen)
-                throw new IllegalArgumentException("invalid taint: s len" 
-                                                    + slen + " tclen " +
-                                                    tclen + " taint len " +
-                                                    t.length());
-
-            char[] v = new char[slen + tclen];
-            s.getChars(0, slen, v, 0);
-            t.getTaintAsChars(v, slen);
-            return v;
+            if (t == FULL)
+                return count == 0 ? old : FULL;
+
+            if (t == null || !t.isTainted())
+                return old;
+
+            if (count != t.length())
+                throw new IllegalArgumentException("invalid taint: s len " 
+                                                   + count + " taint len " 
+                                                   + t.length());
+            if (t.nextClearBit(0) == count)
+                return FULL;
+            return shared ? t : (Taint) t.clone();
         } catch (Throwable th) {
             Log.error(th);
-            return s.toCharArray();
+            return null;
         }
     }
 
@@ -416,7 +549,7 @@ public final class StringUtil
         try {
             if (str == null) return str;
 
-            return new String(str, new Taint(true, str.length()));
+            return new String(str, FULL);
         } catch (Throwable e) {
             Log.error(e);
             return str;
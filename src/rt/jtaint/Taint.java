@@ -17,10 +17,42 @@ package jtaint;
 
 import java.util.BitSet;
 
+/** Taint is normally stored as a sorted list of tainted intervals (runs)
+ * rather than one bit per character. Tainted data is almost always one or a
+ * handful of contiguous runs (a request parameter pasted into a query
+ * template), so splice operations cost O(number of runs) instead of
+ * O(length), and a large fully tainted request body carries two ints of
+ * taint state.
+ *
+ * Run i covers the half-open interval [r[2*i], r[2*i+1]). Runs are sorted,
+ * non-empty, and never overlap or touch -- adjacent runs are always merged.
+ * Only the first n entries of r are in use.
+ *
+ * Highly fragmented taint (more runs than the equivalent bitmap has words)
+ * is instead stored as a bitmap in w and spliced 64 bits at a time. Bits at
+ * or beyond len are always zero. Exactly one encoding is active: w is null
+ * in run mode, and n is zero in bitmap mode.
+ */
 public final class Taint implements Cloneable
 {
+    private static final int[] EMPTY = new int[0];
+
+    /* Runs cost two ints each and a bitmap costs a long per 64 characters.
+     * Encodings are only switched when one is clearly smaller than the
+     * other, so that a Taint near the break-even point does not thrash.
+     */
+    private static final int SLACK = 4;
+
+    /* Full invariant checking walks the whole encoding after every
+     * mutation, so it is only enabled on request.
+     */
+    private static final boolean verify =
+        Boolean.getBoolean("javataint.taint.verify");
+
     private int len;
-    private BitSet b;
+    private int[] r;
+    private int n;
+    private long[] w;
 
     public Object clone() {
         Taint t;
@@ -29,56 +61,397 @@ public final class Taint implements Cloneable
         } catch (CloneNotSupportedException e) {
             throw new RuntimeException("JDK Clone Error");
         }
-        t.b = (BitSet) b.clone();
+        if (w != null)
+            t.w = (long[]) w.clone();
+        else
+            t.r = n == 0 ? EMPTY : (int[]) r.clone();
         t.verifyTaint();
         return t;
     }
 
     private void verifyTaint() {
-        if (b.nextSetBit(len) != -1)
+        if (!verify)
+            return;
+
+        if (w != null) {
+            int bit = nextSetBit(w, len, w.length << 6);
+            if (n != 0 || bit >= 0)
+                throw new IndexOutOfBoundsException("Invalid Taint: bit "
+                        + bit + " set but length is " + len);
+            return;
+        }
+
+        for (int i = 0; i < n; i += 2)
+            if (r[i] >= r[i+1] || (i != 0 && r[i] <= r[i-1]))
+                throw new IndexOutOfBoundsException("Invalid Taint: run "
+                        + r[i] + "-" + r[i+1] + " out of order");
+
+        if (n != 0 && r[n-1] > len)
             throw new IndexOutOfBoundsException("Invalid Taint: bit "
-                    + b.nextSetBit(len) + " set but length is " + len);
+                    + (r[n-1] - 1) + " set but length is " + len);
+    }
+
+    /* JRE 1.4 lacks the Long bit twiddling methods, so carry our own */
+
+    private static int bitCount(long x) {
+        //[ifJava5+]
+        return Long.bitCount(x);
+        //[fiJava5+]
+        //[ifJava4]
+        x = x - ((x >>> 1) & 0x5555555555555555L);
+        x = (x & 0x3333333333333333L) + ((x >>> 2) & 0x3333333333333333L);
+        x = (x + (x >>> 4)) & 0x0f0f0f0f0f0f0f0fL;
+        x = x + (x >>> 8);
+        x = x + (x >>> 16);
+        x = x + (x >>> 32);
+        return (int) x & 0x7f;
+        //[fiJava4]
+    }
+
+    private static int numberOfTrailingZeros(long x) {
+        //[ifJava5+]
+        return Long.numberOfTrailingZeros(x);
+        //[fiJava5+]
+        //[ifJava4]
+        return bitCount((x & -x) - 1);
+        //[fiJava4]
+    }
+
+    private static long reverse(long x) {
+        //[ifJava5+]
+        return Long.reverse(x);
+        //[fiJava5+]
+        //[ifJava4]
+        x = (x & 0x5555555555555555L) << 1 | (x >>> 1) & 0x5555555555555555L;
+        x = (x & 0x3333333333333333L) << 2 | (x >>> 2) & 0x3333333333333333L;
+        x = (x & 0x0f0f0f0f0f0f0f0fL) << 4 | (x >>> 4) & 0x0f0f0f0f0f0f0f0fL;
+        x = (x & 0x00ff00ff00ff00ffL) << 8 | (x >>> 8) & 0x00ff00ff00ff00ffL;
+        return (x << 48) | ((x & 0xffff0000L) << 16)
+               | ((x >>> 16) & 0xffff0000L) | (x >>> 48);
+        //[fiJava4]
+    }
+
+    /** Return the index (into r) of the first run that ends after index,
+     * or n if there is no such run.
+     */
+    private static int findRun(int[] r, int n, int index) {
+        int lo = 0, hi = n >> 1;
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (r[2*mid + 1] <= index)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return 2 * lo;
+    }
+
+    /** Add the run [begin, end) to the end of dst, merging it with the
+     * last run of dst if they touch. Returns the new number of entries used.
+     */
+    private static int addRun(int[] dst, int dn, int begin, int end) {
+        if (begin >= end)
+            return dn;
+
+        if (dn != 0 && dst[dn-1] == begin) {
+            dst[dn-1] = end;
+            return dn;
+        }
+
+        dst[dn]   = begin;
+        dst[dn+1] = end;
+        return dn + 2;
+    }
+
+    /** Copy the part of src that lies within [begin, end) to the end of dst,
+     * shifted by delta. Returns the new number of entries used in dst.
+     */
+    private static int copyRuns(int[] src, int sn, int begin, int end,
+                                int delta, int[] dst, int dn)
+    {
+        for (int i = findRun(src, sn, begin); i < sn && src[i] < end; i += 2)
+            dn = addRun(dst, dn, Math.max(src[i], begin) + delta,
+                        Math.min(src[i+1], end) + delta);
+        return dn;
+    }
+
+    /** Append run [begin, end) in place, growing r if needed. The caller
+     * guarantees begin is not less than the end of the current last run.
+     */
+    private void appendRun(int begin, int end) {
+        ensureRunCapacity(n + 2);
+        n = addRun(r, n, begin, end);
+    }
+
+    /** Grow r to hold at least size entries. r grows geometrically, so that
+     * repeated appends (for instance to a StringBuilder) take amortized 
+     * constant time per run.
+     */
+    private void ensureRunCapacity(int size) {
+        if (size > r.length) {
+            int[] u = new int[Math.max(Math.max(4, size), 2 * r.length)];
+            System.arraycopy(r, 0, u, 0, n);
+            r = u;
+        }
+    }
+
+    private static int words(int nbits) {
+        return (nbits >>> 6) + ((nbits & 63) == 0 ? 0 : 1);
+    }
+
+    /** Set or clear bits [from, to) of b a word at a time */
+    private static void fill(long[] b, int from, int to, boolean value) {
+        if (from >= to)
+            return;
+
+        int fw = from >>> 6,
+            tw = (to - 1) >>> 6;
+        long fmask = -1L << from,
+             tmask = -1L >>> -to;
+
+        if (fw == tw)
+            fmask = tmask = fmask & tmask;
+
+        if (value) {
+            b[fw] |= fmask;
+            for (int i = fw + 1; i < tw; i++)
+                b[i] = -1L;
+            b[tw] |= tmask;
+        } else {
+            b[fw] &= ~fmask;
+            for (int i = fw + 1; i < tw; i++)
+                b[i] = 0L;
+            b[tw] &= ~tmask;
+        }
+    }
+
+    /** Return the 64 bits of b starting at bit pos. Bits past the end of b
+     * read as zero.
+     */
+    private static long getBits(long[] b, int pos) {
+        int i = pos >>> 6,
+            shift = pos & 63;
+        long v = b[i] >>> shift;
+
+        if (shift != 0 && i + 1 < b.length)
+            v |= b[i+1] << (64 - shift);
+        return v;
+    }
+
+    /** Replace the count (at most 64) bits of b starting at pos with the low
+     * count bits of v.
+     */
+    private static void putBits(long[] b, int pos, long v, int count) {
+        int i = pos >>> 6,
+            shift = pos & 63;
+        long mask = count == 64 ? -1L : (1L << count) - 1;
+
+        v &= mask;
+        b[i] = (b[i] & ~(mask << shift)) | (v << shift);
+        if (shift != 0 && shift + count > 64)
+            b[i+1] = (b[i+1] & ~(mask >>> (64 - shift)))
+                     | (v >>> (64 - shift));
+    }
+
+    /** Copy nbits bits from src at srcPos to dst at dstPos, 64 bits at a
+     * time. Like System.arraycopy, overlapping copies within one array
+     * behave as if the source were first copied to a temporary buffer.
+     */
+    private static void copyBits(long[] src, int srcPos, long[] dst,
+                                 int dstPos, int nbits)
+    {
+        if (nbits <= 0)
+            return;
+
+        if (src == dst && dstPos > srcPos) {
+            for (int i = (nbits - 1) & ~63; i >= 0; i -= 64)
+                putBits(dst, dstPos + i, getBits(src, srcPos + i),
+                        Math.min(64, nbits - i));
+        } else {
+            for (int i = 0; i < nbits; i += 64)
+                putBits(dst, dstPos + i, getBits(src, srcPos + i),
+                        Math.min(64, nbits - i));
+        }
+    }
+
+    /** Return the first set bit of b in [from, to), or -1 */
+    private static int nextSetBit(long[] b, int from, int to) {
+        if (from >= to)
+            return -1;
+
+        int i = from >>> 6,
+            last = (to - 1) >>> 6;
+        long v = b[i] & (-1L << from);
+
+        while (v == 0) {
+            if (++i > last)
+                return -1;
+            v = b[i];
+        }
+
+        int bit = (i << 6) + numberOfTrailingZeros(v);
+        return bit < to ? bit : -1;
+    }
+
+    /** Return the first clear bit of b in [from, to), or to */
+    private static int nextClearBit(long[] b, int from, int to) {
+        if (from >= to)
+            return to;
+
+        int i = from >>> 6,
+            last = (to - 1) >>> 6;
+        long v = ~b[i] & (-1L << from);
+
+        while (v == 0) {
+            if (++i > last)
+                return to;
+            v = ~b[i];
+        }
+
+        int bit = (i << 6) + numberOfTrailingZeros(v);
+        return bit < to ? bit : to;
+    }
+
+    /** Count bitmap runs by counting the set bits that start a run */
+    private int countBitmapRuns() {
+        int c = 0, nw = words(len);
+        long carry = 0;
+
+        for (int i = 0; i < nw; i++) {
+            long v = w[i];
+            c += bitCount(v & ~((v << 1) | carry));
+            carry = v >>> 63;
+        }
+        return c;
+    }
+
+    private void ensureBitmapCapacity(int nbits) {
+        int nw = words(nbits);
+
+        if (nw > w.length) {
+            long[] u = new long[Math.max(nw, 2 * w.length)];
+            System.arraycopy(w, 0, u, 0, w.length);
+            w = u;
+        }
+    }
+
+    private void toBitmap() {
+        long[] u = new long[Math.max(1, words(len))];
+
+        for (int i = 0; i < n; i += 2)
+            fill(u, r[i], r[i+1], true);
+        w = u;
+        r = EMPTY;
+        n = 0;
+    }
+
+    private void toRuns(int runs) {
+        int[] u = runs == 0 ? EMPTY : new int[2 * runs];
+        int un = 0;
+
+        for (int i = nextSetBit(w, 0, len); i >= 0; ) {
+            int j = nextClearBit(w, i, len);
+            u[un++] = i;
+            u[un++] = j;
+            i = nextSetBit(w, j, len);
+        }
+
+        r = u;
+        n = un;
+        w = null;
+    }
+
+    /** Called after run mode mutations that may add runs. O(1). */
+    private void checkRuns() {
+        if ((n >> 1) > words(len) + SLACK)
+            toBitmap();
+    }
+
+    /** Called only after bitmap mode mutations that already touched every
+     * word, so that counting runs does not change their complexity.
+     */
+    private void checkBitmap() {
+        int runs = countBitmapRuns();
+        if (runs == 0 || 2 * runs + SLACK <= words(len))
+            toRuns(runs);
     }
 
     public Taint() {
-        b = new BitSet();
+        r = EMPTY;
     }
 
     public Taint(BitSet b, int len) {
-        this.b = (BitSet) b.clone();
+        if (b.length() > len)
+            throw new IndexOutOfBoundsException("Invalid Taint: bit "
+                    + (b.length() - 1) + " set but length is " + len);
+
+        r = EMPTY;
+        for (int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i)) {
+            int j = b.nextClearBit(i);
+            appendRun(i, j);
+            i = j;
+        }
         this.len = len;
+        checkRuns();
         verifyTaint();
     }
 
     public Taint(boolean fill, int len) {
-        b = new BitSet(fill ? len : 0);
         if (len > 0 && fill) {
-            b.set(0,len);
-        }
+            r = new int[] { 0, len };
+            n = 2;
+        } else
+            r = EMPTY;
         this.len = len;
         verifyTaint();
     }
 
+    /** Decode taint packed 16 bits per char, four chars to each word */
     public Taint(char[] t, int len) {
-        b = new BitSet(len);
+        if (t.length != (len + 15)/16)
+                throw new IllegalArgumentException("invalid taint");
 
+        long[] u = new long[Math.max(1, words(len))];
         for (int i = 0; i < t.length; i++)
-            for (int j = 0; j < 16; j++)
-                if ((t[i] & (1 << j)) != 0)
-                    b.set(i * 16 + j);
+            u[i >>> 2] |= (long) t[i] << ((i & 3) << 4);
 
-        if (t.length != (len + 15)/16)
-                throw new IllegalArgumentException("invalid taint");
+        int bit = nextSetBit(u, len, u.length << 6);
+        if (bit >= 0)
+            throw new IndexOutOfBoundsException("Invalid Taint: bit "
+                    + bit + " set but length is " + len);
 
+        r = EMPTY;
+        w = u;
         this.len = len;
+        checkBitmap();
         verifyTaint();
     }
 
     public Taint setLength(int newLength) throws IllegalArgumentException {
         if (newLength < 0) throw new IllegalArgumentException("negative len");
-       
-        if (newLength < len) 
-           b.clear(newLength, len);
+
+        if (w != null) {
+            if (newLength < len) {
+                fill(w, newLength, len, false);
+                len = newLength;
+                checkBitmap();
+            } else {
+                ensureBitmapCapacity(newLength);
+                len = newLength;
+            }
+            verifyTaint();
+            return this;
+        }
+
+        if (newLength < len) {
+            int i = findRun(r, n, newLength);
+            if (i < n && r[i] < newLength) {
+                r[i+1] = newLength;
+                i += 2;
+            }
+            n = i;
+        }
         len = newLength;
         verifyTaint();
 
@@ -86,59 +459,162 @@ public final class Taint implements Cloneable
     }
 
     public void set(int index) throws IllegalArgumentException {
-        if (index >= len || index < 0) 
+        if (index >= len || index < 0)
             throw new IllegalArgumentException("invalid index");
 
-        b.set(index);
+        if (w != null)
+            w[index >>> 6] |= 1L << index;
+        else
+            setRange(index, index + 1);
     }
 
-    public void set(int fromIndex, int toIndex) 
-        throws IllegalArgumentException 
+    public void set(int fromIndex, int toIndex)
+        throws IllegalArgumentException
     {
-        if (fromIndex > toIndex || toIndex >= len || (fromIndex|toIndex) < 0) 
+        if (fromIndex > toIndex || toIndex >= len || (fromIndex|toIndex) < 0)
             throw new IllegalArgumentException("invalid index");
 
-        b.set(fromIndex, toIndex);
+        if (w != null)
+            fill(w, fromIndex, toIndex, true);
+        else
+            setRange(fromIndex, toIndex);
+    }
+
+    private void setRange(int begin, int end) {
+        if (begin >= end)
+            return;
+
+        /* Common case: taint is built front to back */
+        if (n == 0 || begin >= r[n-1]) {
+            appendRun(begin, end);
+            checkRuns();
+            return;
+        }
+
+        /* Widen [begin, end) to cover any run it overlaps or touches */
+        int i = findRun(r, n, begin - 1);
+        if (i < n && r[i] < begin)
+            begin = r[i];
+        int j = findRun(r, n, end);
+        if (j < n && r[j] <= end)
+            end = r[j+1];
+
+        int[] u = new int[n + 2];
+        int un = copyRuns(r, n, 0, begin, 0, u, 0);
+        un = addRun(u, un, begin, end);
+        un = copyRuns(r, n, end, len, 0, u, un);
+        r = u;
+        n = un;
+        checkRuns();
     }
 
     public void clear(int index) throws IllegalArgumentException {
-        if (index >= len || index < 0) 
+        if (index >= len || index < 0)
             throw new IllegalArgumentException("invalid index");
 
-        b.clear(index);
+        if (w != null)
+            w[index >>> 6] &= ~(1L << index);
+        else
+            clearRange(index, index + 1);
     }
-    
-    public void clear(int fromIndex, int toIndex) 
-        throws IllegalArgumentException 
+
+    public void clear(int fromIndex, int toIndex)
+        throws IllegalArgumentException
     {
-        if (fromIndex > toIndex || toIndex >= len || (fromIndex|toIndex) < 0) 
+        if (fromIndex > toIndex || toIndex >= len || (fromIndex|toIndex) < 0)
             throw new IllegalArgumentException("invalid index");
 
-        b.clear(fromIndex, toIndex);
+        if (w != null)
+            fill(w, fromIndex, toIndex, false);
+        else
+            clearRange(fromIndex, toIndex);
+    }
+
+    private void clearRange(int begin, int end) {
+        if (begin >= end)
+            return;
+
+        int i = findRun(r, n, begin);
+        if (i == n || r[i] >= end)
+            return; /* Already untainted */
+
+        int[] u = new int[n + 2];
+        int un = copyRuns(r, n, 0, begin, 0, u, 0);
+        un = copyRuns(r, n, end, len, 0, u, un);
+        r = u;
+        n = un;
+        checkRuns();
     }
 
     public boolean get(int index) throws IllegalArgumentException {
-        if (index >= len || index < 0) 
+        if (index >= len || index < 0)
+            throw new IllegalArgumentException("invalid index");
+
+        if (w != null)
+            return (w[index >>> 6] & (1L << index)) != 0;
+
+        int i = findRun(r, n, index);
+        return i < n && r[i] <= index;
+    }
+
+    /** Return the first tainted index at or after fromIndex, or -1 */
+    public int nextSetBit(int fromIndex) throws IllegalArgumentException {
+        if (fromIndex < 0)
+            throw new IllegalArgumentException("invalid index");
+
+        if (w != null)
+            return nextSetBit(w, fromIndex, len);
+
+        int i = findRun(r, n, fromIndex);
+        return i < n ? Math.max(r[i], fromIndex) : -1;
+    }
+
+    /** Return the first untainted index at or after fromIndex, or length()
+     * if every index from fromIndex on is tainted.
+     */
+    public int nextClearBit(int fromIndex) throws IllegalArgumentException {
+        if (fromIndex < 0)
             throw new IllegalArgumentException("invalid index");
-        return b.get(index);
+        if (fromIndex >= len)
+            return len;
+
+        if (w != null)
+            return nextClearBit(w, fromIndex, len);
+
+        int i = findRun(r, n, fromIndex);
+        return i < n && r[i] <= fromIndex ? r[i+1] : fromIndex;
     }
 
-    public Taint subset(int beginIndex, int endIndex) 
-        throws IllegalArgumentException 
+    public Taint subset(int beginIndex, int endIndex)
+        throws IllegalArgumentException
     {
        int newLen = endIndex - beginIndex;
-       if (beginIndex > endIndex || endIndex > len || 
-               (beginIndex|endIndex) < 0) 
+       if (beginIndex > endIndex || endIndex > len ||
+               (beginIndex|endIndex) < 0)
            throw new IllegalArgumentException("invalid index");
 
-       b.clear(0, beginIndex);
-       for (int i = b.nextSetBit(beginIndex); i >= 0 && i < endIndex;
-                i = b.nextSetBit(i+1)) 
-       {
-           b.clear(i);
-           b.set(i - beginIndex);
+       if (w != null) {
+           copyBits(w, beginIndex, w, 0, newLen);
+           fill(w, newLen, len, false);
+           len = newLen;
+           checkBitmap();
+           verifyTaint();
+           return this;
+       }
+
+       /* Shifting runs down never overlaps a run that is yet to be read, so
+        * this can be done in place.
+        */
+       int i = findRun(r, n, beginIndex), un = 0;
+       for (; i < n && r[i] < endIndex; i += 2) {
+           int b = Math.max(r[i], beginIndex) - beginIndex,
+               e = Math.min(r[i+1], endIndex) - beginIndex;
+           if (b < e) {
+               r[un++] = b;
+               r[un++] = e;
+           }
        }
-       b.clear(endIndex, len);
+       n = un;
 
        len = newLen;
        verifyTaint();
@@ -154,13 +630,24 @@ public final class Taint implements Cloneable
         if (beginIndex < 0 || beginIndex > endIndex || beginIndex > len)
             throw new IllegalArgumentException("invalid index");
 
-        if (endIndex > len) endIndex = len; 
+        if (endIndex > len) endIndex = len;
         remlen = endIndex - beginIndex;
 
-        b.clear(beginIndex, endIndex);
-        for (int i = b.nextSetBit(endIndex); i >= 0; i = b.nextSetBit(i+1)) {
-            b.clear(i);
-            b.set(i-remlen);
+        if (remlen != 0 && w != null) {
+            copyBits(w, endIndex, w, beginIndex, len - endIndex);
+            fill(w, len - remlen, len, false);
+            len -= remlen;
+            checkBitmap();
+            verifyTaint();
+            return this;
+        }
+
+        if (remlen != 0 && n != 0) {
+            int[] u = new int[n + 2];
+            int un = copyRuns(r, n, 0, beginIndex, 0, u, 0);
+            un = copyRuns(r, n, endIndex, len, -remlen, u, un);
+            r = u;
+            n = un;
         }
 
         len -= remlen;
@@ -168,11 +655,32 @@ public final class Taint implements Cloneable
         return this;
     }
 
+    /** OR the taint of t into this bitmap at offset */
+    private void orBitmap(int offset, Taint t) {
+        if (t.w != null)
+            copyBits(t.w, 0, w, offset, t.len);
+        else
+            for (int i = 0; i < t.n; i += 2)
+                fill(w, offset + t.r[i], offset + t.r[i+1], true);
+    }
+
     public Taint append(Taint t) {
-        BitSet tb = t.asBitSet();
-        for (int i = tb.nextSetBit(0); i >= 0; i = tb.nextSetBit(i+1)) 
-            b.set(len + i);
-        len += t.len;
+        if (t == this)
+            t = (Taint) clone();
+
+        if (w == null && t.w == null) {
+            ensureRunCapacity(n + t.n);
+            n = copyRuns(t.r, t.n, 0, t.len, len, r, n);
+            len += t.len;
+            checkRuns();
+        } else {
+            if (w == null)
+                toBitmap();
+            ensureBitmapCapacity(len + t.len);
+            orBitmap(len, t);
+            len += t.len;
+        }
+
         verifyTaint();
         return this;
     }
@@ -183,65 +691,242 @@ public final class Taint implements Cloneable
         if (offset > len || offset < 0)
             throw new IllegalArgumentException("invalid offset");
 
+        if (t == this)
+            t = (Taint) clone();
+
         int olen = t.len;
-        for (int i = len - 1; i >= offset; i--) {
-            if (b.get(i)) {
-                b.clear(i);
-                b.set(i + olen);
-            }
-        }
 
-        BitSet tb = t.asBitSet();
-        for (int i = tb.nextSetBit(0); i >= 0; i = tb.nextSetBit(i+1))
-            b.set(offset + i);
+        if (w == null && t.w == null) {
+            int[] u = new int[n + t.n + 2];
+            int un = copyRuns(r, n, 0, offset, 0, u, 0);
+            un = copyRuns(t.r, t.n, 0, olen, offset, u, un);
+            un = copyRuns(r, n, offset, len, olen, u, un);
+            r = u;
+            n = un;
+            len += olen;
+            checkRuns();
+        } else {
+            if (w == null)
+                toBitmap();
+            ensureBitmapCapacity(len + olen);
+            copyBits(w, offset, w, offset + olen, len - offset);
+            fill(w, offset, offset + olen, false);
+            orBitmap(offset, t);
+            len += olen;
+            checkBitmap();
+        }
 
-        len += olen;
         verifyTaint();
         return this;
     }
 
 
-    public Taint insertUntainted(int offset, int olen) 
+    public Taint insertUntainted(int offset, int olen)
         throws IllegalArgumentException
     {
         if (offset > len || offset < 0)
             throw new IllegalArgumentException("invalid offset");
 
-        for (int i = len - 1; i >= offset; i--) {
-            if (b.get(i)) {
-                b.clear(i);
-                b.set(i + olen);
+        if (w != null) {
+            ensureBitmapCapacity(len + olen);
+            copyBits(w, offset, w, offset + olen, len - offset);
+            fill(w, offset, offset + olen, false);
+            len += olen;
+            verifyTaint();
+            return this;
+        }
+
+        int i = findRun(r, n, offset);
+        if (i < n && olen != 0) {
+            /* Split the run straddling offset, then shift the rest up */
+            if (r[i] < offset) {
+                int[] u = new int[n + 2];
+                System.arraycopy(r, 0, u, 0, i + 1);
+                u[i+1] = offset;
+                u[i+2] = offset;
+                System.arraycopy(r, i + 1, u, i + 3, n - i - 1);
+                r = u;
+                n += 2;
+                i += 2;
             }
+
+            for (; i < n; i++)
+                r[i] += olen;
         }
 
         len += olen;
+        checkRuns();
+        verifyTaint();
+        return this;
+    }
+
+    /** Replace the taint of [offset, offset + t.length()) with the taint of
+     * t. The length of this Taint is unchanged. Pieces put front to back
+     * into a Taint created with its final length are appended in place, so
+     * that a multi-way concatenation is built in a single pass.
+     */
+    public Taint put(int offset, Taint t) throws IllegalArgumentException
+    {
+        if (offset < 0 || offset > len - t.len)
+            throw new IllegalArgumentException("invalid offset");
+
+        if (t == this)
+            return this;
+
+        if (w == null && t.w == null) {
+            if (n == 0 || offset >= r[n-1]) {
+                /* Common case: taint is built front to back */
+                ensureRunCapacity(n + t.n);
+                n = copyRuns(t.r, t.n, 0, t.len, offset, r, n);
+            } else {
+                int[] u = new int[n + t.n + 2];
+                int un = copyRuns(r, n, 0, offset, 0, u, 0);
+                un = copyRuns(t.r, t.n, 0, t.len, offset, u, un);
+                un = copyRuns(r, n, offset + t.len, len, 0, u, un);
+                r = u;
+                n = un;
+            }
+            checkRuns();
+        } else {
+            if (w == null)
+                toBitmap();
+            if (t.w == null)
+                fill(w, offset, offset + t.len, false);
+            orBitmap(offset, t);
+        }
+
+        verifyTaint();
+        return this;
+    }
+
+    /** Taint [offset, offset + olen). Unlike set(int, int), the range may
+     * extend to the end of this Taint.
+     */
+    public Taint putTainted(int offset, int olen)
+        throws IllegalArgumentException
+    {
+        if (offset < 0 || olen < 0 || offset > len - olen)
+            throw new IllegalArgumentException("invalid offset");
+
+        if (w != null)
+            fill(w, offset, offset + olen, true);
+        else
+            setRange(offset, offset + olen);
+
         verifyTaint();
         return this;
     }
 
     public Taint reverse() {
-        for (int i =0, j = len-1; i < j; i++, j--) {
-            boolean t = b.get(i);
-            b.set(i,b.get(j));
-            b.set(j,t);
+        if (w != null) {
+            int nw = words(len);
+
+            /* Reverse whole words, then shift the result back down so that
+             * it starts at bit 0.
+             */
+            for (int i = 0, j = nw - 1; i <= j; i++, j--) {
+                long v = reverse(w[i]);
+                w[i] = reverse(w[j]);
+                w[j] = v;
+            }
+            copyBits(w, (nw << 6) - len, w, 0, len);
+            fill(w, len, nw << 6, false);
+            verifyTaint();
+            return this;
         }
+
+        int[] u = new int[n];
+
+        for (int i = 0, j = n - 2; i < n; i += 2, j -= 2) {
+            u[j]   = len - r[i+1];
+            u[j+1] = len - r[i];
+        }
+        r = u;
         verifyTaint();
         return this;
     }
 
     public void getTaintAsChars(char[] dst, int dstBegin) {
-        for (int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i+1))
-            dst[dstBegin + i/16] |= (char) (1 << (i & 15));
+        if (w != null) {
+            for (int i = 0, nw = words(len); i < nw; i++) {
+                long v = w[i];
+                for (int j = dstBegin + (i << 2); v != 0; v >>>= 16, j++)
+                    dst[j] |= (char) v;
+            }
+            return;
+        }
+
+        for (int k = 0; k < n; k += 2) {
+            for (int i = r[k], end = r[k+1]; i < end; ) {
+                int bit   = i & 15,
+                    nbits = Math.min(16 - bit, end - i);
+
+                dst[dstBegin + (i >> 4)] |= (char) (((1 << nbits) - 1) << bit);
+                i += nbits;
+            }
+        }
     }
 
-    public boolean isTainted() { return b.cardinality() != 0; }
+    public boolean isTainted() {
+        if (w != null)
+            return nextSetBit(w, 0, len) >= 0;
+        return n != 0;
+    }
 
-    public int cardinality() { return b.cardinality(); }
+    public int cardinality() {
+        int c = 0;
+
+        if (w != null) {
+            for (int i = 0; i < w.length; i++)
+                c += bitCount(w[i]);
+            return c;
+        }
+
+        for (int i = 0; i < n; i += 2)
+            c += r[i+1] - r[i];
+        return c;
+    }
 
     public int length() { return len; }
 
-    public BitSet asBitSet() { return b; }
+    /** Returns a BitSet snapshot of this taint. Changes to the returned
+     * BitSet are not reflected in this object.
+     */
+    public BitSet asBitSet() {
+        BitSet b;
+
+        if (w != null) {
+            b = new BitSet(len);
+            for (int i = nextSetBit(w, 0, len); i >= 0; ) {
+                int j = nextClearBit(w, i, len);
+                b.set(i, j);
+                i = nextSetBit(w, j, len);
+            }
+            return b;
+        }
+
+        b = new BitSet(n == 0 ? 0 : r[n-1]);
+        for (int i = 0; i < n; i += 2)
+            b.set(r[i], r[i+1]);
+        return b;
+    }
+
+    public String toString() {
+        @StringBuilder@ sb = new @StringBuilder@();
+        BitSet b = asBitSet();
+
+        sb.append("[tainted: " + isTainted() + "]" + "[length: " + len + "] {");
+        for (int i = b.nextSetBit(0), first = i; i >= 0; ) {
+            int j = b.nextClearBit(i);
 
-    public String toString() { return "[tainted: " + isTainted() + "]"
-                               + "[length: " + len + "] " +  b.toString(); }
+            if (i != first)
+                sb.append(", ");
+            sb.append(i);
+            if (j - i > 1)
+                sb.append("-" + (j - 1));
+            i = b.nextSetBit(j);
+        }
+        sb.append('}');
+        return sb.toString();
+    }
 }
@@ -32,6 +32,137 @@ public final class TaintUtil
         return t1.append(t2);
     }
 
+    /* The following helpers update t, the taint of a StringBuilder or 
+     * StringBuffer that now holds count characters, after a String s was
+     * appended, inserted or replaced into it. The builder's Taint is 
+     * resized in place and the taint of s is put directly at its offset, so
+     * neither Taint is copied.
+     */
+
+    public static Taint appendString(Taint t, int count, String s) {
+        if (t != null)
+            t.setLength(count);
+        else if (s.@internal@isTainted())
+            t = new Taint(false, count);
+        else
+            return null;
+
+        s.@internal@taintInto(t, count - s.length());
+        return t;
+    }
+
+    public static Taint insertString(Taint t, int count, int offset, 
+                                     String s) 
+    {
+        if (t != null)
+            t.insertUntainted(offset, count - t.length());
+        else if (s.@internal@isTainted())
+            t = new Taint(false, count);
+        else
+            return null;
+
+        s.@internal@taintInto(t, offset);
+        return t;
+    }
+
+    public static Taint replaceString(Taint t, int count, int begin, int end,
+                                      String s) 
+    {
+        if (t != null) {
+            t.delete(begin, end);
+            t.insertUntainted(begin, count - t.length());
+        } else if (s.@internal@isTainted())
+            t = new Taint(false, count);
+        else
+            return null;
+
+        s.@internal@taintInto(t, begin);
+        return t;
+    }
+
+    /* Extend t, the taint of a StringBuilder/StringBuffer that now holds
+     * count characters, after an append that can only add untainted 
+     * characters (primitives, char arrays).
+     */
+    public static Taint appendUntainted(Taint t, int count) {
+        if (t == null)
+            return null;
+        return t.setLength(count);
+    }
+
+    /* As above, for an insert at offset */
+    public static Taint insertUntainted(Taint t, int count, int offset) {
+        if (t == null)
+            return null;
+        return t.insertUntainted(offset, count - t.length());
+    }
+
+    /* Return a private copy of the taint of a CharSequence argument to 
+     * append or insert, or null if it is untainted. StringBuilder and 
+     * StringBuffer arguments are read directly rather than converted to a 
+     * String.
+     */
+    private static Taint taintOf(Object o) {
+        if (o instanceof String)
+            return ((String) o).@internal@taint();
+        if (o instanceof StringBuffer)
+            return ((StringBuffer) o).@internal@taint();
+        //[ifJava5+]
+        if (o instanceof StringBuilder)
+            return ((StringBuilder) o).@internal@taint();
+        //[fiJava5+]
+        return String.valueOf(o).@internal@taint();
+    }
+
+    /* Return the taint of the len characters of o that were appended or
+     * inserted. A CharSequence whose String form does not match the 
+     * characters it supplied is conservatively treated as fully tainted if
+     * its String form is tainted.
+     */
+    private static Taint charSequenceTaint(Object o, int len) {
+        Taint t = taintOf(o);
+
+        if (t == null || t.length() == len)
+            return t;
+        if (!t.isTainted())
+            return null;
+        return new Taint(true, len);
+    }
+
+    private static int charSequenceLength(Object o) {
+        return o == null ? 4 /* "null" */ : ((CharSequence) o).length();
+    }
+
+    /* Update t, the taint of a StringBuilder/StringBuffer that now holds
+     * count characters, after o was appended to it.
+     */
+    public static Taint appendCharSequence(Taint t, int count, Object o) {
+        if (o instanceof String)
+            return appendString(t, count, (String) o);
+
+        int olen = t != null ? count - t.length() : charSequenceLength(o);
+        Taint ot = charSequenceTaint(o, olen);
+
+        if (ot == null)
+            return appendUntainted(t, count);
+        return append(t, count - olen, ot, olen);
+    }
+
+    /* As above, for o inserted at offset */
+    public static Taint insertCharSequence(Taint t, int count, int offset,
+                                           Object o) 
+    {
+        if (o instanceof String)
+            return insertString(t, count, offset, (String) o);
+
+        int olen = t != null ? count - t.length() : charSequenceLength(o);
+        Taint ot = charSequenceTaint(o, olen);
+
+        if (ot == null)
+            return insertUntainted(t, count, offset);
+        return insert(t, count - olen, offset, ot, olen);
+    }
+
     /* Insert t1 into t2 at offset */
     public static Taint insert(Taint t1, int t1Len, int offset,
                                Taint t2, int t2Len) 
@@ -48,23 +179,4 @@ public final class TaintUtil
 
         return t1.insert(offset, t2);
     }
-
-    /* Perform a replace operation -- same semantics as StringBuilder.replace */
-    public static Taint replace(Taint t1, int t1Len, int begin, int end,
-                                Taint t2, int t2Len) 
-    {
-        if (t1 == null && t2 == null)
-            return null;
-        else if (t1 == null) {
-            t2.insertUntainted(0, begin);
-            t2.setLength(t1Len + t2Len - (end - begin));
-            return t2;
-        } else if (t2 == null) {
-            t1.delete(begin, end);
-            return t1.insertUntainted(begin, t2Len);
-        } 
-
-        t1.delete(begin, end);
-        return t1.insert(begin, t2);
-    }
 }
@@ -0,0 +1,478 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+//[ifJava5+]
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+//[fiJava5+]
+
+/* Statistics on the cost of instrumentation, enabled by the <telemetry/>
+ * configuration element. InstrumentationUtils reports every class it sees,
+ * and the time it spent on it, from the defining thread. Counters are
+ * striped by thread, so that classloaders defining classes concurrently do
+ * not contend on a single cache line, and latencies are kept in a
+ * histogram with fixed power-of-two buckets.
+ *
+ * On Java 5 and later, the statistics are published as the
+ * jtaint:type=Instrumentation MBean, unless jmx="false". If a dump file is
+ * configured, a report listing the slowest classes and the classes that
+ * grew the most through instrumentation is written to it when the JVM
+ * exits.
+ */
+
+public final class Telemetry implements TelemetryMBean
+{
+    /* Event counters */
+    static final int SCANNED      = 0;
+    static final int PARSED       = 1;
+    static final int INSTRUMENTED = 2;
+    static final int CACHE_HITS   = 3;
+    static final int WARMUP_HITS  = 4;
+    static final int ERRORS       = 5;
+    static final int FILTER       = 6;
+    static final int SQL          = 7;
+    static final int SERVLET      = 8;
+    static final int XSS          = 9;
+    static final int ORIG_BYTES   = 10;
+    static final int INST_BYTES   = 11;
+    static final int NANOS        = 12;
+    private static final int EVENTS = 13;
+
+    /* Bucket i holds latencies below 2^i microseconds, the last one all
+     * others
+     */
+    private static final int BUCKETS = 22;
+    private static final int TOP = 25;
+
+    private static final boolean enabled = Configuration.telemetryEnabled;
+
+    private static final Counter events = new Counter(EVENTS);
+    private static final Counter latency = new Counter(BUCKETS);
+
+    private static final Top slowest = new Top(TOP);
+    private static final Top largest = new Top(TOP);
+
+    private static final Map loaders = new WeakHashMap(); /* Loader -> Stats*/
+    private static final Stats bootStats = new Stats("bootstrap");
+
+    /* Per-thread {WeakReference to loader, Stats} of the last loader seen */
+    private static final ThreadLocal lastLoader = new ThreadLocal();
+
+    private static final Telemetry instance = new Telemetry();
+
+    static {
+        if (enabled)
+            start();
+    }
+
+    /* Counters striped by thread. Each stripe holds a value for every
+     * slot, and is padded to a multiple of the cache line size.
+     */
+    private static final class Counter
+    {
+        private static final int STRIPES = 16;
+        private static final int PAD = 8; /* Longs per 64 byte line */
+
+        private final int slots, stride;
+
+        //[ifJava5+]
+        private final AtomicLongArray cells;
+        //[fiJava5+]
+        //[ifJava4]
+        private final long[] cells;
+        private final Object[] locks;
+        //[fiJava4]
+
+        Counter(int slots) {
+            this.slots = slots;
+            this.stride = (slots + PAD - 1) / PAD * PAD;
+
+            //[ifJava5+]
+            cells = new AtomicLongArray(PAD + STRIPES * stride);
+            //[fiJava5+]
+            //[ifJava4]
+            cells = new long[PAD + STRIPES * stride];
+            locks = new Object[STRIPES];
+            for (int i = 0; i < STRIPES; i++)
+                locks[i] = new Object();
+            //[fiJava4]
+        }
+
+        private static int stripe() {
+            int h = System.identityHashCode(Thread.currentThread());
+            h ^= (h >>> 16) ^ (h >>> 8);
+            return h & (STRIPES - 1);
+        }
+
+        void add(int slot, long n) {
+            int s = stripe();
+            int i = PAD + s * stride + slot;
+
+            //[ifJava5+]
+            cells.addAndGet(i, n);
+            //[fiJava5+]
+            //[ifJava4]
+            synchronized(locks[s]) {
+                cells[i] += n;
+            }
+            //[fiJava4]
+        }
+
+        long sum(int slot) {
+            long n = 0;
+
+            for (int s = 0; s < STRIPES; s++) {
+                int i = PAD + s * stride + slot;
+                //[ifJava5+]
+                n += cells.get(i);
+                //[fiJava5+]
+                //[ifJava4]
+                synchronized(locks[s]) {
+                    n += cells[i];
+                }
+                //[fiJava4]
+            }
+            return n;
+        }
+
+        long[] sums() {
+            long[] n = new long[slots];
+            for (int i = 0; i < slots; i++)
+                n[i] = sum(i);
+            return n;
+        }
+    }
+
+    /* The classes with the largest values seen so far */
+    private static final class Top
+    {
+        private final String[] names;
+        private final long[] values;
+        private int count;
+
+        /* Smallest value kept, once the table is full */
+        private volatile long threshold = Long.MIN_VALUE;
+
+        Top(int size) {
+            names = new String[size];
+            values = new long[size];
+        }
+
+        boolean accepts(long value) { return value > threshold; }
+
+        synchronized void offer(String name, long value) {
+            int i = count;
+
+            if (count < names.length) {
+                count++;
+            } else {
+                i = 0;
+                for (int j = 1; j < count; j++)
+                    if (values[j] < values[i])
+                        i = j;
+                if (values[i] >= value)
+                    return;
+            }
+
+            names[i] = name;
+            values[i] = value;
+
+            if (count == names.length) {
+                long min = values[0];
+                for (int j = 1; j < count; j++)
+                    min = Math.min(min, values[j]);
+                threshold = min;
+            }
+        }
+
+        /* Return the entries, largest first, with values in units of scale */
+        synchronized String[] entries(String unit, long scale) {
+            String[] n = new String[count];
+            long[] v = new long[count];
+
+            System.arraycopy(names, 0, n, 0, count);
+            System.arraycopy(values, 0, v, 0, count);
+
+            /* Selection sort, these tables are small */
+            for (int i = 0; i < count; i++) {
+                int max = i;
+                for (int j = i + 1; j < count; j++)
+                    if (v[j] > v[max])
+                        max = j;
+
+                String s = n[i]; n[i] = n[max]; n[max] = s;
+                long l = v[i]; v[i] = v[max]; v[max] = l;
+                n[i] = n[i] + ": " + (v[i] / scale) + " " + unit;
+            }
+            return n;
+        }
+    }
+
+    /* Statistics of a single classloader */
+    private static final class Stats
+    {
+        final String name;
+        long classes, instrumented, nanos, origBytes, instBytes;
+
+        Stats(String name) { this.name = name; }
+
+        synchronized String format() {
+            return name + ": classes=" + classes
+                   + " instrumented=" + instrumented
+                   + " timeMicros=" + (nanos / 1000)
+                   + " originalBytes=" + origBytes
+                   + " instrumentedBytes=" + instBytes;
+        }
+    }
+
+    private Telemetry() { }
+
+    public static boolean enabled() { return enabled; }
+
+    /** Return the current time in nanoseconds, for measuring intervals */
+    public static long now() {
+        //[ifJava5+]
+        return System.nanoTime();
+        //[fiJava5+]
+        //[ifJava4]
+        return System.currentTimeMillis() * 1000000L;
+        //[fiJava4]
+    }
+
+    private static String describe(ClassLoader cl) {
+        if (cl == null)
+            return "bootstrap";
+        return cl.getClass().getName() + "@"
+               + Integer.toHexString(System.identityHashCode(cl));
+    }
+
+    private static Stats stats(ClassLoader cl) {
+        if (cl == null)
+            return bootStats;
+
+        Object[] last = (Object[]) lastLoader.get();
+        if (last != null && ((WeakReference) last[0]).get() == cl)
+            return (Stats) last[1];
+
+        Stats s;
+        synchronized(loaders) {
+            s = (Stats) loaders.get(cl);
+            if (s == null) {
+                s = new Stats(describe(cl));
+                loaders.put(cl, s);
+            }
+        }
+
+        lastLoader.set(new Object[] { new WeakReference(cl), s });
+        return s;
+    }
+
+    /** Count an event (PARSED, CACHE_HITS, FILTER, ...) */
+    public static void count(int event) {
+        if (enabled)
+            events.add(event, 1);
+    }
+
+    /** Record a class seen by InstrumentationUtils. instlen is the length
+     * of the instrumented class, or -1 if it was not changed.
+     */
+    public static void record(ClassLoader cl, String name, int len,
+                              int instlen, long nanos)
+    {
+        events.add(SCANNED, 1);
+        events.add(NANOS, nanos);
+        if (instlen >= 0) {
+            events.add(INSTRUMENTED, 1);
+            events.add(ORIG_BYTES, len);
+            events.add(INST_BYTES, instlen);
+        }
+
+        int i = 0;
+        for (long us = nanos / 1000; us > 0 && i < BUCKETS - 1; us >>= 1)
+            i++;
+        latency.add(i, 1);
+
+        Stats s = stats(cl);
+        synchronized(s) {
+            s.classes++;
+            s.nanos += nanos;
+            if (instlen >= 0) {
+                s.instrumented++;
+                s.origBytes += len;
+                s.instBytes += instlen;
+            }
+        }
+
+        if (name == null)
+            return;
+        if (slowest.accepts(nanos))
+            slowest.offer(name + " (" + s.name + ")", nanos);
+        if (instlen >= 0 && largest.accepts(instlen - len))
+            largest.offer(name + " (" + s.name + ")", instlen - len);
+    }
+
+    private static void start() {
+        AccessController.doPrivileged(new PrivilegedAction() {
+            public Object run() {
+                if (Configuration.telemetryDump != null) {
+                    Thread t = new Thread("JavaTaint telemetry dump") {
+                        public void run() {
+                            try {
+                                instance.dump(Configuration.telemetryDump);
+                            } catch (Throwable th) {
+                                Log.error(th);
+                            }
+                        }
+                    };
+                    Runtime.getRuntime().addShutdownHook(t);
+                }
+
+                /* Registering the MBean may load classes, so never do it on
+                 * a thread that is defining one.
+                 */
+                //[ifJava5+]
+                if (Configuration.telemetryJmx) {
+                    Thread t = new Thread("JavaTaint telemetry") {
+                        public void run() {
+                            try {
+                                ManagementFactory.getPlatformMBeanServer()
+                                    .registerMBean(instance, new ObjectName(
+                                        "jtaint:type=Instrumentation"));
+                            } catch (Throwable th) {
+                                Log.error(th);
+                            }
+                        }
+                    };
+                    t.setDaemon(true);
+                    t.start();
+                }
+                //[fiJava5+]
+                return null;
+            }
+        });
+    }
+
+    public long getClassesScanned()      { return events.sum(SCANNED); }
+    public long getClassesParsed()       { return events.sum(PARSED); }
+    public long getClassesInstrumented() { return events.sum(INSTRUMENTED); }
+    public long getCacheHits()           { return events.sum(CACHE_HITS); }
+    public long getWarmupHits()          { return events.sum(WARMUP_HITS); }
+    public long getErrors()              { return events.sum(ERRORS); }
+
+    public long getFilterAdapterClasses()  { return events.sum(FILTER); }
+    public long getSqlAdapterClasses()     { return events.sum(SQL); }
+    public long getServletAdapterClasses() { return events.sum(SERVLET); }
+    public long getXssAdapterClasses()     { return events.sum(XSS); }
+
+    public long getOriginalBytes()     { return events.sum(ORIG_BYTES); }
+    public long getInstrumentedBytes() { return events.sum(INST_BYTES); }
+    public long getTotalTimeMicros()   { return events.sum(NANOS) / 1000; }
+
+    public long[] getLatencyBucketsMicros() {
+        long[] b = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; i++)
+            b[i] = 1L << i;
+        b[BUCKETS - 1] = Long.MAX_VALUE;
+        return b;
+    }
+
+    public long[] getLatencyHistogram() { return latency.sums(); }
+
+    public String[] getLoaderStatistics() {
+        List l = new ArrayList();
+
+        synchronized(bootStats) {
+            if (bootStats.classes > 0)
+                l.add(bootStats);
+        }
+        synchronized(loaders) {
+            l.addAll(loaders.values());
+        }
+
+        String[] s = new String[l.size()];
+        for (int i = 0; i < s.length; i++)
+            s[i] = ((Stats) l.get(i)).format();
+        return s;
+    }
+
+    public String[] getSlowestClasses() {
+        return slowest.entries("us", 1000);
+    }
+
+    public String[] getMostInstrumentedClasses() {
+        return largest.entries("bytes added", 1);
+    }
+
+    private static void print(PrintWriter pw, String title, String[] s) {
+        pw.println();
+        pw.println(title);
+        for (int i = 0; i < s.length; i++)
+            pw.println("  " + s[i]);
+    }
+
+    public void dump(String path) throws Exception {
+        PrintWriter pw = new PrintWriter(new FileOutputStream(path));
+
+        try {
+            pw.println("JavaTaint @version@ instrumentation telemetry");
+            pw.println();
+            pw.println("classes scanned       " + getClassesScanned());
+            pw.println("classes parsed        " + getClassesParsed());
+            pw.println("classes instrumented  " + getClassesInstrumented());
+            pw.println("cache hits            " + getCacheHits());
+            pw.println("warmup hits           " + getWarmupHits());
+            pw.println("errors                " + getErrors());
+            pw.println("FilterAdapter         " + getFilterAdapterClasses());
+            pw.println("SqlAdapter            " + getSqlAdapterClasses());
+            pw.println("ServletAdapter        " + getServletAdapterClasses());
+            pw.println("XssAdapter            " + getXssAdapterClasses());
+            pw.println("original bytes        " + getOriginalBytes());
+            pw.println("instrumented bytes    " + getInstrumentedBytes());
+            pw.println("total time (us)       " + getTotalTimeMicros());
+
+            long[] b = getLatencyBucketsMicros();
+            long[] h = getLatencyHistogram();
+            pw.println();
+            pw.println("latency histogram");
+            for (int i = 0; i < BUCKETS; i++) {
+                if (h[i] == 0)
+                    continue;
+                pw.println("  " + (i < BUCKETS - 1 ? "< " + b[i] + " us"
+                                                   : ">= " + b[i - 1] + " us")
+                           + ": " + h[i]);
+            }
+
+            print(pw, "slowest classes", getSlowestClasses());
+            print(pw, "most instrumented classes",
+                  getMostInstrumentedClasses());
+            print(pw, "classloaders", getLoaderStatistics());
+        } finally {
+            pw.close();
+        }
+    }
+}
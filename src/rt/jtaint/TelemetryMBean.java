@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+/* Management interface of the jtaint:type=Instrumentation MBean. All
+ * counters are totals since the JVM started. See Telemetry.
+ */
+
+public interface TelemetryMBean
+{
+    /** Classes seen by InstrumentationUtils */
+    long getClassesScanned();
+
+    /** Classes parsed with ASM, including those parsed by warmup threads */
+    long getClassesParsed();
+
+    /** Classes changed by instrumentation */
+    long getClassesInstrumented();
+
+    long getCacheHits();
+    long getWarmupHits();
+    long getErrors();
+
+    /** Classes rewritten by each adapter */
+    long getFilterAdapterClasses();
+    long getSqlAdapterClasses();
+    long getServletAdapterClasses();
+    long getXssAdapterClasses();
+
+    /** Size of instrumented classes before and after instrumentation */
+    long getOriginalBytes();
+    long getInstrumentedBytes();
+
+    /** Time spent in InstrumentationUtils, on the defining threads */
+    long getTotalTimeMicros();
+
+    /** Upper bounds of the latency histogram buckets, in microseconds */
+    long[] getLatencyBucketsMicros();
+
+    /** Number of classes in each latency histogram bucket */
+    long[] getLatencyHistogram();
+
+    String[] getLoaderStatistics();
+    String[] getSlowestClasses();
+    String[] getMostInstrumentedClasses();
+
+    /** Write a report of all statistics to a file */
+    void dump(String path) throws Exception;
+}
@@ -0,0 +1,284 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/* Classes are normally instrumented in defineClass, on the loading thread
+ * and often with the classloader lock held, which serializes application
+ * startup behind our instrumentation. When enabled with the
+ * <warmup threads="n" jars="..."/> configuration element, the listed jars
+ * of each URLClassLoader are instead scanned by a pool of background
+ * threads as soon as the classloader defines its first class. Classes that
+ * need instrumentation are instrumented ahead of time, and defineClass
+ * usually only has to look up the result.
+ *
+ * A result is only used if the classloader defines exactly the bytes it
+ * was computed from, and is otherwise treated as a miss. Classes the
+ * classloader has already defined are skipped. Jars are scanned in
+ * parallel, so if a class is in several jars, the first jar scanned
+ * provides the result, which is a miss if the classloader defines the
+ * class from another jar. At most max-classes results are held for each
+ * classloader; later results are dropped, and left to defineClass.
+ */
+
+final class Warmup implements Runnable
+{
+    private static final Map loaders = new WeakHashMap(); /* Loader -> State */
+    private static final LinkedList jobs = new LinkedList();
+    private static boolean started;
+
+    /* Per-thread {WeakReference to loader, State} of the last loader seen */
+    private static final ThreadLocal lastLoader = new ThreadLocal();
+
+    /* Warmup state of a classloader, guarded by the State itself */
+    static final class State
+    {
+        /* Classes defined by the classloader */
+        private final Set defined = new HashSet();
+
+        /* Classes instrumented in the background */
+        private final Set queued = new HashSet();
+
+        /* Map class name -> {original bytes, instrumented bytes} */
+        private final Map ready = new HashMap();
+
+        /** Return the instrumented bytes of a class defined by the 
+         * classloader, or null if they are not ready
+         */
+        public byte[] take(String name, byte[] b, int off, int len) {
+            byte[][] r;
+
+            synchronized(this) {
+                defined.add(name);
+                r = (byte[][]) ready.remove(name);
+            }
+
+            if (r == null || r[0].length != len)
+                return null;
+
+            byte[] orig = r[0];
+            for (int i = 0; i < len; i++)
+                if (orig[i] != b[off + i])
+                    return null;
+            return r[1];
+        }
+    }
+
+    private static final class Job
+    {
+        final WeakReference loader;
+        final State state;
+        final File jar;
+
+        Job(ClassLoader cl, State state, File jar) {
+            this.loader = new WeakReference(cl);
+            this.state = state;
+            this.jar = jar;
+        }
+    }
+
+    private Warmup() { }
+
+    public static boolean enabled() { 
+        return Configuration.warmupThreads > 0; 
+    }
+
+    private static void startThreads() {
+        AccessController.doPrivileged(new PrivilegedAction() {
+            public Object run() {
+                for (int i = 0; i < Configuration.warmupThreads; i++) {
+                    Thread t = new Thread(new Warmup(),
+                                          "JavaTaint warmup " + i);
+                    /* Workers never exit, so they must not keep the
+                     * context loader of the thread that started them 
+                     * (often a webapp being deployed) reachable
+                     */
+                    t.setContextClassLoader(null);
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    t.start();
+                }
+                return null;
+            }
+        });
+    }
+
+    /* Is f one of the jars named in the configuration? */
+    private static boolean isWarmupJar(File f) {
+        Set s = Configuration.warmupJars;
+        return s.contains(f.getName()) || s.contains(f.getAbsolutePath());
+    }
+
+    /** Return the warmup state of classloader cl, or null if it is not a
+     * URLClassLoader. The configured jars of cl are queued the first time
+     * it is seen.
+     */
+    public static State start(ClassLoader cl) {
+        State state;
+
+        if (!(cl instanceof URLClassLoader))
+            return null;
+
+        Object[] last = (Object[]) lastLoader.get();
+        if (last != null && ((WeakReference) last[0]).get() == cl)
+            return (State) last[1];
+
+        boolean seen;
+        synchronized(loaders) {
+            state = (State) loaders.get(cl);
+            seen = state != null;
+            if (!seen) {
+                state = new State();
+                loaders.put(cl, state);
+            }
+        }
+
+        lastLoader.set(new Object[] { new WeakReference(cl), state });
+        if (seen)
+            return state;
+
+        /* Never call into the classloader with our lock held */
+        URL[] urls = ((URLClassLoader) cl).getURLs();
+        LinkedList l = new LinkedList();
+
+        for (int i = 0; i < urls.length; i++) {
+            try {
+                String path = urls[i].getPath();
+                if (!"file".equals(urls[i].getProtocol())
+                        || !path.endsWith(".jar"))
+                    continue;
+
+                File f = new File(URLDecoder.decode(path, "UTF-8"));
+                if (isWarmupJar(f) && f.isFile())
+                    l.add(new Job(cl, state, f));
+            } catch (Throwable th) {
+                Log.debug(th);
+            }
+        }
+
+        if (l.isEmpty())
+            return state;
+
+        synchronized(jobs) {
+            jobs.addAll(l);
+            if (!started) {
+                started = true;
+                startThreads();
+            }
+            jobs.notifyAll();
+        }
+        return state;
+    }
+
+    private static byte[] read(ZipFile z, ZipEntry ze) throws Exception {
+        InputStream is = z.getInputStream(ze);
+
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            for (int n; (n = is.read(buf)) > 0; )
+                bos.write(buf, 0, n);
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void process(Job job) throws Exception {
+        ZipFile z = new ZipFile(job.jar);
+        State state = job.state;
+
+        try {
+            for (Enumeration e = z.entries(); e.hasMoreElements(); ) {
+                ZipEntry ze = (ZipEntry) e.nextElement();
+                String name = ze.getName();
+
+                if (!name.endsWith(".class"))
+                    continue;
+                name = name.substring(0, name.length() - 6);
+
+                synchronized(state) {
+                    if (state.ready.size() >= Configuration.warmupMaxClasses)
+                        return;
+                    if (state.defined.contains(name) 
+                            || !state.queued.add(name))
+                        continue;
+                }
+
+                ClassLoader cl = (ClassLoader) job.loader.get();
+                if (cl == null)
+                    return;
+
+                try {
+                    byte[] b = read(z, ze);
+                    ClassScanner cs = new ClassScanner(b, 0, b.length);
+                    if (!name.equals(cs.className()) || cs.isExcluded(cl)
+                            || !cs.mayInstrument(cl))
+                        continue;
+
+                    byte[] instb = InstrumentationUtils.transform(cl, cs, b,
+                                                              0, b.length);
+                    synchronized(state) {
+                        if (!state.defined.contains(name)
+                                && state.ready.size() 
+                                   < Configuration.warmupMaxClasses)
+                            state.ready.put(name, new byte[][] { b, instb });
+                    }
+                } catch (Throwable th) {
+                    /* Left to be instrumented by defineClass */
+                    Log.debug(th);
+                }
+            }
+        } finally {
+            z.close();
+        }
+    }
+
+    public void run() {
+        for (;;) {
+            Job job;
+
+            try {
+                synchronized(jobs) {
+                    while (jobs.isEmpty())
+                        jobs.wait();
+                    job = (Job) jobs.removeFirst();
+                }
+                process(job);
+            } catch (Throwable th) {
+                Log.error(th);
+            }
+        }
+    }
+}
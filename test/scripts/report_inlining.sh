@@ -0,0 +1,24 @@
+#!/bin/bash
+# Copyright 2009-2012 Michael Dalton
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+
+# Report JIT inlining decisions for the instrumented String wrappers. Each 
+# wrapper should be reported as inlined, within MaxInlineSize. Requires a 
+# HotSpot VM that supports -XX:+PrintInlining.
+source version.sh
+
+java $VER_FLAGS -XX:+UnlockDiagnosticVMOptions -XX:+PrintCompilation \
+        -XX:+PrintInlining \
+        -cp /home/mwdalton/java-taint/test/build/${VER}/common:/home/mwdalton/java-taint/test/build/${VER}/tests \
+        jtaint.StringInliningReport | \
+        grep -E 'StringInliningReport::run|java.lang.String::(substring|concat|replace|trim|toUpperCase|toLowerCase|\$_jtaint_\$)'
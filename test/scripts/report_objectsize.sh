@@ -0,0 +1,32 @@
+#!/bin/bash
+# Copyright 2009-2012 Michael Dalton
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+
+# Report per-object sizes of instrumented classes without, and then with, the
+# JavaTaint boot library. Requires Java 1.5 or later.
+source version.sh
+
+TESTS=/home/mwdalton/java-taint/test/build/${VER}/tests
+BOOTLIB=/home/mwdalton/java-taint/test/lib/jt-bootlib${VER}.jar
+AGENT=/tmp/jt-objectsize-$$.jar
+
+echo "Premain-Class: jtaint.ObjectSizeReport" > ${AGENT}.mf
+jar cfm $AGENT ${AGENT}.mf -C $TESTS jtaint/ObjectSizeReport.class
+
+echo "Without JavaTaint:"
+java -javaagent:$AGENT -cp $TESTS jtaint.ObjectSizeReport
+echo "With JavaTaint:"
+java -Xbootclasspath/p:$BOOTLIB -javaagent:$AGENT -cp $TESTS \
+        jtaint.ObjectSizeReport
+
+rm -f $AGENT ${AGENT}.mf
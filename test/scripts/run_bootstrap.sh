@@ -0,0 +1,27 @@
+#!/bin/bash
+# Copyright 2009-2012 Michael Dalton
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+
+source version.sh
+
+JT=/home/mwdalton/java-taint
+ASM=${JT}/lib/asm-3.1.jar:${JT}/lib/asm-commons-3.1.jar:${JT}/lib/asm-util-3.1.jar:${JT}/lib/asm-tree-3.1.jar:${JT}/lib/asm-analysis-3.1.jar
+
+for test in BootstrapTest LockOptimizerTest
+do
+        java -cp ${JT}/test/build/bootstrap:${JT}/build/bootstrap:${JT}/build/common:${ASM}:${JT}/lib/log4j-1.2.15.jar jtaint.${test}
+        if [ $? -ne 0 ]
+        then
+                echo "FAILURE"
+        fi
+done
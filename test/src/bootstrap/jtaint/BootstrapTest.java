@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import java.util.Iterator;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Opcodes;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import org.objectweb.asm.util.CheckClassAdapter;
+
+/* Runs the bootstrap adapters against the classes of the running JRE.
+ * Must be run on the JRE that the bootlib is built for, with jt-bootstrap
+ * and ASM on the classpath.
+ */
+
+public class BootstrapTest implements Opcodes
+{
+    private static final String CHARS_INIT = "([CIILjtaint/Taint;)V";
+
+    private static byte[] readClass(String className) throws IOException {
+        InputStream is = ClassLoader.getSystemResourceAsStream(
+                             className + ".class");
+        if (is == null)
+            throw new IOException("Class not found: " + className);
+
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            for (int n; (n = is.read(buf)) > 0; )
+                bos.write(buf, 0, n);
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /* Add an int count field to String if this JRE does not have one, or
+     * remove it if it does, so that both ways StringAdapter reads the String
+     * length are tested on every JRE. The instrumented class is only
+     * checked, never loaded, so String methods that still use a removed
+     * count field do not matter.
+     */
+    private static byte[] setCountField(byte[] b, final boolean count) {
+        ClassReader cr = new ClassReader(b);
+        ClassWriter cw = new ClassWriter(cr, 0);
+        final boolean[] found = new boolean[1];
+
+        cr.accept(new ClassAdapter(cw) {
+            public FieldVisitor visitField(int access, String name,
+                                           String desc, String signature,
+                                           Object value)
+            {
+                if ("count".equals(name) && "I".equals(desc)) {
+                    found[0] = true;
+                    if (!count)
+                        return null;
+                }
+                return super.visitField(access, name, desc, signature, value);
+            }
+
+            public void visitEnd() {
+                if (count && !found[0])
+                    cv.visitField(ACC_PRIVATE + ACC_FINAL, "count", "I",
+                                  null, null).visitEnd();
+                super.visitEnd();
+            }
+        }, 0);
+
+        return found[0] == count ? b : cw.toByteArray();
+    }
+
+    private static byte[] instrument(byte[] b, InstrumentationBuilder ib) {
+        ClassReader cr = new ClassReader(b);
+        ClassWriter cw = new ClassWriter(cr, 0);
+
+        cr.accept(ib.build(new CheckClassAdapter(cw)),
+                  ClassReader.EXPAND_FRAMES);
+        byte[] instb = cw.toByteArray();
+
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        CheckClassAdapter.verify(new ClassReader(instb), false, pw);
+        pw.flush();
+        if (sw.toString().length() > 0)
+            throw new IllegalArgumentException(sw.toString());
+        return instb;
+    }
+
+    private static MethodNode findMethod(byte[] b, String name, String desc) {
+        ClassNode cn = new ClassNode();
+        new ClassReader(b).accept(cn, 0);
+
+        for (Iterator i = cn.methods.iterator(); i.hasNext(); ) {
+            MethodNode mn = (MethodNode) i.next();
+            if (mn.name.equals(name) && mn.desc.equals(desc))
+                return mn;
+        }
+        throw new IllegalArgumentException("Missing method " + name + desc);
+    }
+
+    /* The tainted char array constructor must read the count field when
+     * String has one, and call length() otherwise.
+     */
+    private static void testStringLength(boolean count) throws IOException {
+        byte[] b = setCountField(readClass("java/lang/String"), count);
+        byte[] instb = instrument(b, StringAdapter.builder());
+        MethodNode mn = findMethod(instb, "<init>", CHARS_INIT);
+        boolean getCount = false, callLength = false;
+
+        for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null;
+             insn = insn.getNext())
+        {
+            if (insn.getOpcode() == GETFIELD
+                    && ((FieldInsnNode) insn).name.equals("count"))
+                getCount = true;
+            else if (insn.getOpcode() == INVOKEVIRTUAL
+                    && ((MethodInsnNode) insn).name.equals("length"))
+                callLength = true;
+        }
+
+        if (count && !getCount)
+            throw new IllegalArgumentException("count field not read");
+        if (count && callLength)
+            throw new IllegalArgumentException("length() called with "
+                                               + "count field");
+        if (!count && getCount)
+            throw new IllegalArgumentException("count field read without "
+                                               + "count field");
+        if (!count && !callLength)
+            throw new IllegalArgumentException("length() not called");
+    }
+
+    /* Build a bootlib with extra debugging checks, and check that it
+     * contains an instrumented String.
+     */
+    private static void testBootstrap() throws IOException {
+        File f = File.createTempFile("jt-bootlib", ".jar");
+        f.delete();
+
+        try {
+            Bootstrap.main(new String[] { "-d", "-f", "-j", f.getPath() });
+            if (new File(f.getPath() + ".tmp").exists())
+                throw new IllegalArgumentException("Temporary jar left");
+
+            JarFile jf = new JarFile(f);
+            try {
+                ZipEntry ze = jf.getEntry("java/lang/String.class");
+                if (ze == null)
+                    throw new IllegalArgumentException("Missing String");
+
+                InputStream is = jf.getInputStream(ze);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                for (int n; (n = is.read(buf)) > 0; )
+                    bos.write(buf, 0, n);
+                is.close();
+
+                findMethod(bos.toByteArray(), "<init>", CHARS_INIT);
+            } finally {
+                jf.close();
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            testStringLength(true);
+            testStringLength(false);
+            testBootstrap();
+        } catch (Throwable th) {
+            th.printStackTrace();
+            System.out.println("FAILURE");
+            System.exit(-1);
+        }
+        System.out.println("BootstrapTest: success");
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+import java.util.BitSet;
+import java.util.Iterator;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/* Runs StringBuilderAdapter.LockOptimizer and StringBuilderAdapter on a
+ * small builder class, and checks which instrumented methods keep the
+ * lock of InstrumentationLockBuilder, and which self-calls are rewritten.
+ */
+
+public class LockOptimizerTest implements Opcodes
+{
+    private static final String BUILDER = "java/lang/StringBuilder";
+    private static final String RET = ")L" + BUILDER + ";";
+
+    /* append(char) returns this. append(String) calls this.append(char),
+     * which cannot re-enter. append(StringBuffer) calls sb.toString(), which
+     * may call back into this builder, then this.append(String).
+     */
+    private static byte[] builderClass() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        MethodVisitor mv;
+
+        cw.visit(V1_4, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, BUILDER, null,
+                 "java/lang/Object", null);
+
+        mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>",
+                           "()V");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "append", "(C" + RET, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "append",
+                            "(Ljava/lang/String;" + RET, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitIntInsn(BIPUSH, 'x');
+        mv.visitMethodInsn(INVOKEVIRTUAL, BUILDER, "append", "(C" + RET);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "append",
+                            "(Ljava/lang/StringBuffer;" + RET, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "toString",
+                           "()Ljava/lang/String;");
+        mv.visitMethodInsn(INVOKEVIRTUAL, BUILDER, "append",
+                           "(Ljava/lang/String;" + RET);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static MethodNode findMethod(ClassNode cn, String name,
+                                         String desc)
+    {
+        for (Iterator i = cn.methods.iterator(); i.hasNext(); ) {
+            MethodNode mn = (MethodNode) i.next();
+            if (mn.name.equals(name) && mn.desc.equals(desc))
+                return mn;
+        }
+        throw new IllegalArgumentException("Missing method " + name + desc);
+    }
+
+    /* Does the wrapper maintain the lock owner of the current thread? */
+    private static boolean isLocked(MethodNode mn) {
+        String setLockOwner = ByteCodeUtil.internalName("setLockOwner");
+
+        for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null;
+             insn = insn.getNext())
+            if (insn instanceof MethodInsnNode
+                    && ((MethodInsnNode) insn).name.equals(setLockOwner))
+                return true;
+        return false;
+    }
+
+    /* Return the names of the methods called by the original version of
+     * append(desc)
+     */
+    private static String calls(ClassNode cn, String desc) {
+        MethodNode mn = findMethod(cn, ByteCodeUtil.internalName("append"),
+                                   desc);
+        StringBuffer sb = new StringBuffer();
+
+        for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null;
+             insn = insn.getNext())
+            if (insn instanceof MethodInsnNode)
+                sb.append(sb.length() == 0 ? "" : " ")
+                  .append(((MethodInsnNode) insn).name);
+        return sb.toString();
+    }
+
+    private static void check(boolean b, String msg) {
+        if (!b)
+            throw new IllegalArgumentException(msg);
+    }
+
+    public static void main(String[] args) {
+        try {
+            byte[] b = builderClass();
+            ClassReader cr = new ClassReader(b);
+            cr.accept(StringBuilderAdapter.LockOptimizer.builder().build(),
+                      ClassReader.EXPAND_FRAMES + ClassReader.SKIP_DEBUG
+                      + ClassReader.SKIP_FRAMES);
+
+            check(!StringBuilderAdapter.LockOptimizer.mayReenter("append",
+                        "(C" + RET), "append(char) may re-enter");
+            check(!StringBuilderAdapter.LockOptimizer.mayReenter("append",
+                        "(Ljava/lang/String;" + RET),
+                  "append(String) may re-enter");
+            check(StringBuilderAdapter.LockOptimizer.mayReenter("append",
+                        "(Ljava/lang/StringBuffer;" + RET),
+                  "append(StringBuffer) never re-enters");
+
+            BitSet calls = StringBuilderAdapter.LockOptimizer.selfCalls(
+                               ACC_PUBLIC, "append",
+                               "(Ljava/lang/String;" + RET);
+            check(calls != null && calls.get(0),
+                  "append(String) has no self-call");
+
+            ClassWriter cw = new ClassWriter(cr, 0);
+            cr.accept(StringBuilderAdapter.builder().build(cw),
+                      ClassReader.EXPAND_FRAMES);
+            ClassNode cn = new ClassNode();
+            new ClassReader(cw.toByteArray()).accept(cn, 0);
+
+            check(!isLocked(findMethod(cn, "append", "(C" + RET)),
+                  "append(char) keeps the lock");
+            check(!isLocked(findMethod(cn, "append",
+                                       "(Ljava/lang/String;" + RET)),
+                  "append(String) keeps the lock");
+            check(isLocked(findMethod(cn, "append",
+                                      "(Ljava/lang/StringBuffer;" + RET)),
+                  "append(StringBuffer) does not keep the lock");
+
+            /* Self-calls in the original methods invoke the original 
+             * callee, other calls are left alone
+             */
+            String append = ByteCodeUtil.internalName("append");
+            check(calls(cn, "(Ljava/lang/String;" + RET).equals(append),
+                  "self-call of append(String) not rewritten");
+            check(calls(cn, "(Ljava/lang/StringBuffer;" + RET).equals(
+                        "toString " + append),
+                  "calls of append(StringBuffer) not rewritten");
+        } catch (Throwable th) {
+            th.printStackTrace();
+            System.out.println("FAILURE");
+            System.exit(-1);
+        }
+        System.out.println("LockOptimizerTest: success");
+    }
+}
@@ -126,6 +126,26 @@ public class SafeTaint implements Cloneable
         return b[index];
     }
 
+    public int nextSetBit(int fromIndex) throws IllegalArgumentException {
+        if (fromIndex < 0)
+            throw new IllegalArgumentException("invalid index");
+
+        for (int i = fromIndex; i < b.length; i++)
+            if (b[i])
+                return i;
+        return -1;
+    }
+
+    public int nextClearBit(int fromIndex) throws IllegalArgumentException {
+        if (fromIndex < 0)
+            throw new IllegalArgumentException("invalid index");
+
+        for (int i = fromIndex; i < b.length; i++)
+            if (!b[i])
+                return i;
+        return b.length;
+    }
+
     public SafeTaint subset(int beginIndex, int endIndex) 
         throws IllegalArgumentException 
     {
@@ -196,6 +216,29 @@ public class SafeTaint implements Cloneable
     }
 
 
+    public SafeTaint put(int offset, SafeTaint st) 
+        throws IllegalArgumentException
+    {
+        if (offset < 0 || offset > b.length - st.b.length)
+            throw new IllegalArgumentException("invalid offset");
+
+        boolean[] stb = (boolean[]) st.b.clone();
+        for (int i = 0; i < stb.length; i++)
+            b[offset + i] = stb[i];
+        return this;
+    }
+
+    public SafeTaint putTainted(int offset, int olen) 
+        throws IllegalArgumentException
+    {
+        if (offset < 0 || olen < 0 || offset > b.length - olen)
+            throw new IllegalArgumentException("invalid offset");
+
+        for (int i = 0; i < olen; i++)
+            b[offset + i] = true;
+        return this;
+    }
+
     public SafeTaint reverse() {
         boolean[] newb = new boolean[b.length];
 
@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/** Report the size of instances of the classes instrumented by JavaTaint, 
+ * as measured by Instrumentation.getObjectSize(), along with any fields 
+ * added by JavaTaint. Run as a java agent both with and without the 
+ * JavaTaint boot library to compare per-object overhead (see
+ * scripts/report_objectsize.sh).
+ */
+public class ObjectSizeReport
+{
+    private static Instrumentation inst;
+
+    public static void premain(String args, Instrumentation inst) {
+        ObjectSizeReport.inst = inst;
+    }
+
+    private static String internalFields(Class c) {
+        StringBuffer sb = new StringBuffer();
+
+        for (Class k = c; k != null; k = k.getSuperclass()) {
+            Field[] f = k.getDeclaredFields();
+
+            for (int i = 0; i < f.length; i++) {
+                if (Modifier.isStatic(f[i].getModifiers()) 
+                        || !f[i].getName().startsWith("@internal@"))
+                    continue;
+                sb.append(' ').append(f[i].getType().getName()).append(' ')
+                  .append(k.getName()).append('.').append(f[i].getName());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void report(String desc, Object o) {
+        String fields = internalFields(o.getClass());
+
+        System.out.println(desc + ": " + inst.getObjectSize(o) + " bytes" 
+                           + (fields.length() == 0 ? "" 
+                                                   : " (added:" + fields + ")"));
+    }
+
+    public static void main(String[] args) {
+        if (inst == null) {
+            System.err.println("Usage: java -javaagent:<jar file> "
+                               + "jtaint.ObjectSizeReport");
+            System.exit(-1);
+        }
+
+        System.out.println(System.getProperty("java.vm.name") + " " 
+                           + System.getProperty("java.version"));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        report("StringBuilder", new StringBuilder());
+        report("StringBuffer", new StringBuffer());
+        report("String", new String(new char[] { 'a' }));
+        report("ByteArrayOutputStream", os);
+        report("PrintWriter", new PrintWriter(os));
+        report("Thread", Thread.currentThread());
+    }
+}
@@ -28,6 +28,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 
+import java.lang.reflect.Method;
+
 import javax.servlet.Servlet;
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletRequest;
@@ -43,6 +45,42 @@ import javax.servlet.http.HttpUtils;
 
 public class ServletTest 
 {
+    /* Shares the Cookie method signatures, but is not a Cookie */
+    private static final class NamedValue {
+        private final String name, value;
+
+        public NamedValue(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public String getName() { return name; }
+
+        public String getValue() { return value; }
+    }
+
+    private static final class SubCookie extends Cookie {
+        public SubCookie(TestUtil tu) { super(tu); }
+    }
+
+    /* Shares the Servlet service method, but is not a Servlet */
+    private static class ServiceBase {
+        private String remoteAddr;
+
+        public void service(ServletRequest req, ServletResponse res) {
+            remoteAddr = Thread.currentThread().@internal@getRemoteAddr();
+        }
+
+        public String remoteAddr() { return remoteAddr; }
+    }
+
+    /* Inherits service from a class that was not instrumented */
+    private static final class InheritedServlet extends ServiceBase 
+                                                implements Servlet
+    {
+        public String getServletInfo() { return "InheritedServlet"; }
+    }
+
     private final int maxlen;
     private final SafeRandom sr;
     private final TestUtil tu;
@@ -68,7 +106,7 @@ public class ServletTest
             return c;
         }
                     
-        c = new Cookie(tu);
+        c = sr.nextBoolean() ? new Cookie(tu) : new SubCookie(tu);
         cookies.add(c);
         return c;
     }
@@ -228,6 +266,41 @@ public class ServletTest
             throw new RuntimeException("Corrupt Cookie method");
     }
 
+    private void testNamedValue() {
+        NamedValue nv = new NamedValue(tu.randString(), tu.randString());
+        
+        if (nv.getName().@internal@isTainted() 
+                || nv.getValue().@internal@isTainted())
+            throw new RuntimeException("Tainted non-Cookie method");
+    }
+
+    private void testUninstrumented() {
+        Class[] c = { NamedValue.class, ServiceBase.class };
+
+        for (int i = 0; i < c.length; i++) {
+            Method[] m = c[i].getDeclaredMethods();
+
+            for (int j = 0; j < m.length; j++)
+                if (m[j].getName().startsWith("@internal@"))
+                    throw new RuntimeException("Instrumented " + c[i]);
+        }
+    }
+
+    private void testInheritedServlet() {
+        ServletRequest req = randRequest();
+        ServletResponse res = new HttpServletResponse();
+        ServiceBase base = new ServiceBase();
+        InheritedServlet s = new InheritedServlet();
+
+        base.service(req, res);
+        s.service(req, res);
+
+        if (base.remoteAddr() != null)
+            throw new RuntimeException("Instrumented non-Servlet method");
+        if (!req.getRemoteAddr().equals(s.remoteAddr()))
+            throw new RuntimeException("Inherited Servlet method corrupted");
+    }
+
     private void testHttpServlet() {
         Throwable excpt = null;
         HttpServletRequest req = randRequest();
@@ -379,7 +452,7 @@ public class ServletTest
     }
 
     private void test() {
-        switch(sr.nextInt(6)) {
+        switch(sr.nextInt(8)) {
             case 0:
                 testServlet();
                 break;
@@ -404,6 +477,14 @@ public class ServletTest
                 testHttpUtils();
                 break;
 
+           case 6:
+                testNamedValue();
+                break;
+
+           case 7:
+                testInheritedServlet();
+                break;
+
           default:
                 throw new RuntimeException("switch");
         }
@@ -456,6 +537,7 @@ public class ServletTest
         ps.close();
 
         st = new ServletTest(maxlen, new SafeRandom(seed));
+        st.testUninstrumented();
 
         for (int i = 0; i < nrtest; i++) 
             st.test();
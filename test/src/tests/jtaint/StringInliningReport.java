@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2009-2012 Michael Dalton
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jtaint;
+
+/** Exercise the instrumented String methods on untainted Strings, so that
+ * the JIT compiles the callers. Run with -XX:+PrintCompilation and 
+ * -XX:+PrintInlining to check that the String wrappers are inlined (see
+ * scripts/report_inlining.sh).
+ */
+public class StringInliningReport
+{
+    private static int run(String s, String t) {
+        int n = 0;
+
+        n += s.substring(1, s.length() - 1).length();
+        n += s.concat(t).length();
+        n += s.replace('a', 'b').length();
+        n += s.trim().length();
+        n += s.toUpperCase().length();
+        n += s.toLowerCase().length();
+        return n;
+    }
+
+    public static void main(String[] args) {
+        int iterations = 1000000;
+        long sum = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n"))
+                iterations = Integer.decode(args[++i]).intValue();
+            else {
+                System.out.println("Usage: java StringInliningReport "
+                                   + "[-n NumberofIterations]");
+                System.exit(-1);
+            }
+        }
+
+        String s = " Abracadabra ", t = "alakazam";
+        for (int i = 0; i < iterations; i++)
+            sum += run(s, t);
+        System.out.println("checksum: " + sum);
+    }
+}
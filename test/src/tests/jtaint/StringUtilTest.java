@@ -41,8 +41,11 @@ public class StringUtilTest
 
     private void testString() {
         String s = tu.randString();
-        if(!tu.isValidTaintedString(s, StringUtil.toTainted(s)))
+        String ts = StringUtil.toTainted(s);
+        if(!tu.isValidTaintedString(s, ts))
                 throw new RuntimeException(s);
+        if (s.length() > 0 && !ts.@internal@isFullyTainted())
+            throw new RuntimeException("Not fully tainted: " + s);
     }
 
     private void testUntaintString() {
@@ -55,7 +55,9 @@ public final class TaintTest extends Thread
         public static final int T_ASBITSET     = 15;
         public static final int T_GETCHARS     = 16;
         public static final int T_INSERTUNTAINTED     = 17;
-        public static final int T_END          = 18;
+        public static final int T_NEXTBIT      = 18;
+        public static final int T_PUT          = 19;
+        public static final int T_END          = 20;
 
         public static final String[] methodNames = {
             "clone",
@@ -75,7 +77,9 @@ public final class TaintTest extends Thread
             "clear(range)",
             "asBitSet",
             "getTaintAsChars",
-            "insertUntainted"
+            "insertUntainted",
+            "nextSetBit/nextClearBit",
+            "put/putTainted"
         };
     }
 
@@ -733,6 +737,73 @@ public final class TaintTest extends Thread
                             throw new IllegalArgumentException(te.toString());
     }
 
+    private void testNextBit(TaintElem te) {
+        Taint t = te.getTaint();
+        SafeTaint st = te.getSafeTaint();
+        int fromIndex = r.nextInt(st.length() + 2);
+
+        if (t.nextSetBit(fromIndex) != st.nextSetBit(fromIndex)
+                || t.nextClearBit(fromIndex) != st.nextClearBit(fromIndex))
+            throw new IllegalArgumentException(te.toString());
+    }
+
+    private void testPut(TaintElem te) throws IllegalArgumentException {
+        int offset;
+        TaintElem otherte;
+        Taint t = te.getTaint(), othert;
+        SafeTaint st = te.getSafeTaint(), otherst;
+
+        synchronized(taintList) {
+            if (taintList.size() == 0)
+                return;
+            otherte = (TaintElem) taintList.remove(r.nextInt(taintList.size()));
+        }
+
+        otherte.verify();
+        othert = otherte.getTaint();
+        otherst = otherte.getSafeTaint();
+
+        if (r.nextInt(16) == 0) 
+            offset = r.nextInt();
+        else
+            offset = r.nextInt(st.length() + 1);
+
+        if (offset < 0 || offset > st.length() - otherst.length()) {
+            SafeTaint oldst = (SafeTaint) st.clone();
+            boolean caught = false;
+
+            try {
+                t.put(offset, othert);
+            } catch (IllegalArgumentException e) {
+                caught = true;
+            }
+
+            if (!caught) 
+                throw new IllegalArgumentException(te.toString());
+
+            caught = false;
+            try {
+                st.put(offset, otherst);
+            } catch (IllegalArgumentException e) {
+                caught = true;
+            }
+            if (!caught || !oldst.verify(t)) 
+                throw new IllegalArgumentException(te.toString());
+        } else {
+            TaintElem tmp = new TaintElem(t.put(offset, othert),
+                    st.put(offset, otherst), r.nextInt());
+            te.verify(tmp);
+        }
+
+        taintList.add(otherte);
+
+        offset = r.nextInt(st.length() + 1);
+        int olen = r.nextInt(st.length() - offset + 1);
+        TaintElem tmp = new TaintElem(t.putTainted(offset, olen),
+                st.putTainted(offset, olen), r.nextInt());
+        te.verify(tmp);
+    }
+
     private void testSetRange(TaintElem te) throws IllegalArgumentException {
         Taint t = te.getTaint();
         SafeTaint st = te.getSafeTaint();
@@ -962,6 +1033,14 @@ public final class TaintTest extends Thread
                 testInsertUntainted(te);
                 break;
 
+            case TaintMethod.T_NEXTBIT:
+                testNextBit(te);
+                break;
+
+            case TaintMethod.T_PUT:
+                testPut(te);
+                break;
+
             case TaintMethod.T_END: 
                 /* do nothing, re-insert original entry back into the list */
                 break;